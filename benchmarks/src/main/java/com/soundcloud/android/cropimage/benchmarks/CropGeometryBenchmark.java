@@ -0,0 +1,90 @@
+package com.soundcloud.android.cropimage.benchmarks;
+
+import com.soundcloud.android.cropimage.CropGeometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event cost of the crop geometry. Each invocation replays what a single
+ * touch event costs HighlightView: a hit test followed by a move or grow.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CropGeometryBenchmark {
+
+    private final float[] mImage = { 0, 0, 4000, 3000 };
+    private final float[] mCrop = new float[4];
+    private final float[] mScreen = { 100, 200, 900, 1000 };
+    private final int[] mOutSize = new int[2];
+    private float mStep = 3F;
+
+    @Setup
+    public void setup() {
+        mCrop[0] = 800;
+        mCrop[1] = 600;
+        mCrop[2] = 3200;
+        mCrop[3] = 2400;
+    }
+
+    @Benchmark
+    public float[] moveBy() {
+        // alternate direction so the rectangle stays away from the edges
+        mStep = -mStep;
+        CropGeometry.moveBy(mCrop, mImage, mStep, mStep);
+        return mCrop;
+    }
+
+    @Benchmark
+    public float[] growByFreeAspect() {
+        mStep = -mStep;
+        CropGeometry.growBy(mCrop, mImage, mStep, mStep, false, 1F);
+        return mCrop;
+    }
+
+    @Benchmark
+    public float[] growByFixedAspect() {
+        mStep = -mStep;
+        CropGeometry.growBy(mCrop, mImage, mStep, 0, true, 4F / 3F);
+        return mCrop;
+    }
+
+    @Benchmark
+    public int getHitRectangle() {
+        return CropGeometry.getHit(mScreen, 105, 600, false, 20F);
+    }
+
+    @Benchmark
+    public int getHitCircle() {
+        return CropGeometry.getHit(mScreen, 500, 205, true, 20F);
+    }
+
+    @Benchmark
+    public int[] fitOutputSize() {
+        CropGeometry.fitOutputSize(2400, 1800, 1024, 1024, mOutSize);
+        return mOutSize;
+    }
+
+    @Benchmark
+    public float[] unrotate() {
+        mCrop[0] = 800;
+        mCrop[1] = 600;
+        mCrop[2] = 3200;
+        mCrop[3] = 2400;
+        CropGeometry.unrotate(mCrop, 90, 3000, 4000);
+        return mCrop;
+    }
+}
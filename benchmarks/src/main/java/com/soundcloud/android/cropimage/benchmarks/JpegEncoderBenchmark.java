@@ -0,0 +1,114 @@
+package com.soundcloud.android.cropimage.benchmarks;
+
+import com.soundcloud.android.cropimage.JpegEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speed of {@link JpegEncoder} against the platform encoder (ImageIO standing
+ * in for Bitmap.compress, both libjpeg based) on the output of the resample
+ * stage, and of its restart interval based multi-core mode. The sizes of the
+ * files are printed by main():
+ *
+ *   java -cp target/benchmarks.jar com.soundcloud.android.cropimage.benchmarks.JpegEncoderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JpegEncoderBenchmark {
+
+    static final String[] ENCODERS = {
+        "platform", "baseline-420", "optimized-420", "progressive-420", "baseline-444", "progressive-444",
+        "parallel-420", "parallel-optimized-420"
+    };
+
+    @Param({ "1", "12" })
+    public int megapixels;
+
+    @Param({ "90" })
+    public int quality;
+
+    @Param({ "platform", "baseline-420", "optimized-420", "progressive-420",
+             "baseline-444", "progressive-444", "parallel-420", "parallel-optimized-420" })
+    public String encoder;
+
+    private BufferedImage mImage;
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mImage = SyntheticCorpus.generate(megapixels);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        mOut.reset();
+        encode(mImage, encoder, quality, mOut);
+        return mOut.size();
+    }
+
+    static void encode(BufferedImage image, String encoder, int quality,
+                       ByteArrayOutputStream out) throws IOException {
+        if ("platform".equals(encoder)) {
+            out.write(PipelineStages.encodeJpeg(image, quality / 100f));
+            return;
+        }
+        final int width = image.getWidth(), height = image.getHeight();
+        JpegEncoder jpeg = new JpegEncoder(out, width, height, quality);
+        jpeg.setSubsampling(encoder.endsWith("444")
+                ? JpegEncoder.SUBSAMPLING_444 : JpegEncoder.SUBSAMPLING_420);
+        jpeg.setOptimizeHuffman(encoder.contains("optimized"));
+        jpeg.setProgressive(encoder.startsWith("progressive"));
+        if (encoder.startsWith("parallel")) {
+            // restart intervals on all cores
+            jpeg.setThreads(Runtime.getRuntime().availableProcessors());
+        }
+
+        // strips, the way OutputEncoder feeds it from a Bitmap
+        final int stripHeight = 16;
+        int[] strip = new int[width * stripHeight];
+        for (int y = 0; y < height; y += stripHeight) {
+            int rows = Math.min(stripHeight, height - y);
+            image.getRGB(0, y, width, rows, strip, 0, width);
+            jpeg.writeRows(strip, 0, width, rows);
+        }
+        jpeg.finish();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int megapixels = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        int quality = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        BufferedImage image = SyntheticCorpus.generate(megapixels);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        System.out.printf(Locale.US, "%d MP at quality %d%n", megapixels, quality);
+        long platform = 0;
+        for (String encoder : ENCODERS) {
+            out.reset();
+            encode(image, encoder, quality, out);
+            if (platform == 0) platform = out.size();
+            System.out.printf(Locale.US, "  %-22s %10d bytes  %6.1f%%%n",
+                    encoder, out.size(), 100.0 * out.size() / platform);
+        }
+    }
+}
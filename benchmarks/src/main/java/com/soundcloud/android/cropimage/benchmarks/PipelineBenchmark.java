@@ -0,0 +1,84 @@
+package com.soundcloud.android.cropimage.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency distribution of every pipeline stage per source size. Sample mode
+ * reports percentiles; add "-prof gc" for allocation rates. The 100 MP
+ * sources need a large heap:
+ *
+ *   java -jar target/benchmarks.jar PipelineBenchmark -jvmArgs -Xmx3g
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 4)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PipelineBenchmark {
+
+    @Param({ "1", "12", "24", "50", "100" })
+    public int megapixels;
+
+    @Param({ "jpg", "png" })
+    public String format;
+
+    private File mSource;
+    private int mWidth, mHeight;
+    private BufferedImage mCrop;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mSource = SyntheticCorpus.get(megapixels, format);
+        int[] size = PipelineStages.probe(mSource);
+        mWidth = size[0];
+        mHeight = size[1];
+        mCrop = PipelineStages.decodeRegion(mSource, mWidth, mHeight, 0);
+    }
+
+    @Benchmark
+    public int[] probe() throws IOException {
+        return PipelineStages.probe(mSource);
+    }
+
+    @Benchmark
+    public BufferedImage decodePreview() throws IOException {
+        return PipelineStages.decodePreview(mSource, mWidth, mHeight);
+    }
+
+    @Benchmark
+    public BufferedImage decodeRegion() throws IOException {
+        return PipelineStages.decodeRegion(mSource, mWidth, mHeight, 90);
+    }
+
+    @Benchmark
+    public BufferedImage resample() {
+        return PipelineStages.resample(mCrop);
+    }
+
+    @Benchmark
+    public BufferedImage rotate() {
+        return PipelineStages.rotate(mCrop, 90);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return PipelineStages.encodeJpeg(mCrop, 1.0f);
+    }
+}
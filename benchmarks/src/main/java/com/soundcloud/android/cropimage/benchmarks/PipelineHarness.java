@@ -0,0 +1,361 @@
+package com.soundcloud.android.cropimage.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Runs the whole crop pipeline (probe, preview decode, region decode,
+ * resample, rotation, geometry, extract, ladder, encode) over the synthetic
+ * corpus and records
+ * latency percentiles per stage, throughput and peak heap, then compares the
+ * result with baseline.properties and exits with 1 on a regression.
+ *
+ * Only the stages which run library code are gated, on their best run: the
+ * crop geometry, the resampling of MultiRegionCrop.extract() and
+ * OutputLadder.build() on the library's transform and size math (see
+ * PipelineStages) and the JpegEncoder encodes. The ImageIO/Java2D stand-ins
+ * for the Android decoders and Canvas, and the peak heap they dominate, are
+ * recorded under "info." keys for reference; a JDK or machine change moves
+ * them without the library changing.
+ *
+ * To keep the best run stable enough for a 50% threshold on shared machines,
+ * every source gets a fixed number of warm-up runs (the pom also runs the
+ * JVM with -Xbatch, so compilation finishes within them) and each library
+ * stage is timed as the best of LIBRARY_REPEATS calls per run.
+ *
+ * Timings are stored relative to a calibration workload of plain Java array
+ * arithmetic measured in the same run, close to what the gated stages do,
+ * so a baseline recorded on one machine is usable on another.
+ *
+ * System properties:
+ *   pipeline.megapixels      comma separated sizes, default 1,12
+ *   pipeline.formats         comma separated formats, default jpg,png
+ *   pipeline.iterations      measured runs per source, default 15
+ *   pipeline.warmup          warm-up runs per source, default 5
+ *   pipeline.baseline        baseline file, default baseline.properties
+ *   pipeline.tolerance       allowed slowdown, default 0.5 (50%), as in the pom
+ *   pipeline.updateBaseline  write the results as the new baseline
+ */
+public final class PipelineHarness {
+
+    // Stages faster than this fraction of the calibration run are dominated
+    // by timer and scheduling noise and are not gated.
+    static final double NOISE_FLOOR = 0.02;
+
+    static final String[] STAGES = {
+        "probe", "decodePreview", "decodeRegion", "resample", "rotate", "encode",
+        "geometry", "extract", "ladder", "jpegEncode", "jpegEncodeOptimized"
+    };
+
+    // STAGES before this index only run ImageIO/Java2D and are not gated.
+    static final int FIRST_LIBRARY_STAGE = 6;
+
+    static final String INFO = "info.";
+
+    // Calls per library stage and run, the best one counts.
+    static final int LIBRARY_REPEATS = 3;
+
+    private PipelineHarness() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = parseInts(System.getProperty("pipeline.megapixels", "1,12"));
+        String[] formats = System.getProperty("pipeline.formats", "jpg,png").split(",");
+        int iterations = Integer.getInteger("pipeline.iterations", 15);
+        int warmup = Integer.getInteger("pipeline.warmup", 5);
+        File baselineFile = new File(System.getProperty("pipeline.baseline", "baseline.properties"));
+        double tolerance = Double.parseDouble(System.getProperty("pipeline.tolerance", "0.5"));
+
+        double calibration = calibrate();
+        System.out.printf(Locale.US, "calibration: %.2f ms%n", calibration);
+
+        Properties results = new Properties();
+        for (String format : formats) {
+            for (int megapixels : sizes) {
+                run(format, megapixels, warmup, iterations, calibration, results);
+            }
+        }
+
+        File resultFile = new File("target/pipeline-results.properties");
+        store(results, resultFile, "pipeline results, timings relative to calibration");
+        System.out.println("results written to " + resultFile);
+
+        if (Boolean.getBoolean("pipeline.updateBaseline")) {
+            store(results, baselineFile, "pipeline baseline, timings relative to calibration");
+            System.out.println("baseline updated: " + baselineFile);
+            return;
+        }
+
+        if (!baselineFile.exists()) {
+            System.out.println("no baseline at " + baselineFile + ", skipping comparison");
+            return;
+        }
+        Properties baseline = load(baselineFile);
+        List<String> regressions = compare(baseline, results, tolerance);
+        if (!regressions.isEmpty()) {
+            for (String regression : regressions) {
+                System.err.println("REGRESSION " + regression);
+            }
+            System.exit(1);
+        }
+        System.out.println("no regressions against " + baselineFile);
+    }
+
+    private static void run(String format, int megapixels, int warmup, int iterations,
+                            double calibration, Properties results) throws IOException {
+        File source = SyntheticCorpus.get(megapixels, format);
+        long[][] times = new long[STAGES.length][iterations];
+        long peak = 0;
+
+        long[] ignored = new long[STAGES.length];
+        for (int i = 0; i < warmup; i++) {
+            runLibrary(runOnce(source, ignored), ignored);
+        }
+        for (int i = 0; i < iterations; i++) {
+            long[] stageTimes = new long[STAGES.length];
+            long before = resetPeakHeap();
+            Decoded decoded = runOnce(source, stageTimes);
+            peak = Math.max(peak, peakHeap() - before);
+            // no collection of the decoders' garbage in the middle of them
+            System.gc();
+            runLibrary(decoded, stageTimes);
+            for (int s = 0; s < STAGES.length; s++) {
+                times[s][i] = stageTimes[s];
+            }
+        }
+
+        String prefix = format + "." + megapixels + "mp.";
+        long total = 0;
+        System.out.printf(Locale.US, "%s %d MP%n", format, megapixels);
+        for (int s = 0; s < STAGES.length; s++) {
+            long[] t = times[s];
+            Arrays.sort(t);
+            double p50 = percentile(t, 50) / 1e6;
+            double p90 = percentile(t, 90) / 1e6;
+            double p99 = percentile(t, 99) / 1e6;
+            total += percentile(t, 50);
+            boolean library = s >= FIRST_LIBRARY_STAGE;
+            System.out.printf(Locale.US, "  %-20s p50 %9.2f ms  p90 %9.2f ms  p99 %9.2f ms%s%n",
+                    STAGES[s], p50, p90, p99, library ? "" : "  (informational)");
+            String key = prefix + (library ? "" : INFO) + STAGES[s];
+            // the best run is the least disturbed by the machine, it is what is gated
+            results.setProperty(key + ".min", format(t[0] / 1e6 / calibration));
+            results.setProperty(key + ".p50", format(p50 / calibration));
+            results.setProperty(key + ".p90", format(p90 / calibration));
+        }
+        double throughput = megapixels / (total / 1e9);
+        double peakMb = peak / (1024.0 * 1024.0);
+        System.out.printf(Locale.US, "  throughput %.2f MP/s, peak heap %.1f MB%n", throughput, peakMb);
+        results.setProperty(prefix + INFO + "peak_mb", format(peakMb));
+    }
+
+    // What runOnce() decoded, the input of the library stages.
+    private static final class Decoded {
+        final PipelineStages.Pixels crop;
+        final BufferedImage output;
+
+        Decoded(PipelineStages.Pixels crop, BufferedImage output) {
+            this.crop = crop;
+            this.output = output;
+        }
+    }
+
+    // The ImageIO/Java2D stages.
+    private static Decoded runOnce(File source, long[] times) throws IOException {
+        long t = System.nanoTime();
+        int[] size = PipelineStages.probe(source);
+        times[0] = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        BufferedImage preview = PipelineStages.decodePreview(source, size[0], size[1]);
+        times[1] = System.nanoTime() - t;
+        preview.flush();
+        preview = null;
+
+        t = System.nanoTime();
+        BufferedImage crop = PipelineStages.decodeRegion(source, size[0], size[1], 90);
+        times[2] = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        BufferedImage scaled = PipelineStages.resample(crop);
+        times[3] = System.nanoTime() - t;
+        PipelineStages.Pixels pixels = PipelineStages.Pixels.of(crop);
+        crop = null;
+
+        t = System.nanoTime();
+        BufferedImage rotated = PipelineStages.rotate(scaled, 90);
+        times[4] = System.nanoTime() - t;
+
+        t = System.nanoTime();
+        PipelineStages.encodeJpeg(rotated, 1.0f);
+        times[5] = System.nanoTime() - t;
+        return new Decoded(pixels, rotated);
+    }
+
+    // The library stages on the output of runOnce(), each the best of LIBRARY_REPEATS.
+    private static void runLibrary(Decoded decoded, long[] times) throws IOException {
+        BufferedImage output = decoded.output;
+        for (int s = FIRST_LIBRARY_STAGE; s < STAGES.length; s++) {
+            times[s] = Long.MAX_VALUE;
+        }
+        for (int r = 0; r < LIBRARY_REPEATS; r++) {
+            long t = System.nanoTime();
+            PipelineStages.geometry(output.getHeight(), output.getWidth(), 90);
+            times[6] = Math.min(times[6], System.nanoTime() - t);
+
+            t = System.nanoTime();
+            PipelineStages.Pixels top = PipelineStages.extract(decoded.crop, 90);
+            times[7] = Math.min(times[7], System.nanoTime() - t);
+
+            t = System.nanoTime();
+            PipelineStages.ladder(top);
+            times[8] = Math.min(times[8], System.nanoTime() - t);
+
+            // saveOutput encodes at quality 100
+            t = System.nanoTime();
+            PipelineStages.encodeLibrary(output, 100, false);
+            times[9] = Math.min(times[9], System.nanoTime() - t);
+
+            t = System.nanoTime();
+            PipelineStages.encodeLibrary(output, 100, true);
+            times[10] = Math.min(times[10], System.nanoTime() - t);
+        }
+    }
+
+    // Best time of a fixed plain Java workload: float multiply-adds over an array.
+    private static double calibrate() {
+        float[] data = new float[1 << 20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i * 31 % 255) / 255F;
+        }
+        long[] t = new long[15];
+        float sum = 0;
+        for (int i = 0; i < 5; i++) {
+            sum += calibrationWork(data);
+        }
+        for (int i = 0; i < t.length; i++) {
+            long start = System.nanoTime();
+            sum += calibrationWork(data);
+            t[i] = System.nanoTime() - start;
+        }
+        if (sum == 42) System.out.println(); // keep the work alive
+        Arrays.sort(t);
+        return t[0] / 1e6;
+    }
+
+    private static float calibrationWork(float[] data) {
+        float sum = 0;
+        for (int pass = 0; pass < 8; pass++) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = data[i] * 0.999F + 0.001F;
+                sum += data[i];
+            }
+        }
+        return sum;
+    }
+
+    static List<String> compare(Properties baseline, Properties results, double tolerance) {
+        List<String> regressions = new ArrayList<String>();
+        for (String key : new TreeSet<String>(baseline.stringPropertyNames())) {
+            String value = results.getProperty(key);
+            if (value == null) {
+                continue; // size or format not part of this run
+            }
+            if (!key.endsWith(".min")) {
+                continue; // too noisy to gate on, recorded for reference
+            }
+            if (key.contains("." + INFO)) {
+                continue; // not library code
+            }
+            double expected = Double.parseDouble(baseline.getProperty(key));
+            double actual = Double.parseDouble(value);
+            if (expected < NOISE_FLOOR) {
+                continue;
+            }
+            if (actual > expected * (1 + tolerance)) {
+                regressions.add(String.format(Locale.US, "%s: %.3f, baseline %.3f (+%.0f%%)",
+                        key, actual, expected, (actual / expected - 1) * 100));
+            }
+        }
+        return regressions;
+    }
+
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // Nearest-rank percentile of sorted values.
+    static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] ints = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ints[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ints;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, File file, String comment) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, comment);
+        } finally {
+            out.close();
+        }
+    }
+}
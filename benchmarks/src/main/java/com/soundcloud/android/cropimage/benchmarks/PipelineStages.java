@@ -0,0 +1,352 @@
+package com.soundcloud.android.cropimage.benchmarks;
+
+import com.soundcloud.android.cropimage.CropGeometry;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The stages of CropImageActivity's pipeline on the JVM. The library's own
+ * code runs as is: the crop geometry ({@link CropGeometry}) and the JPEG
+ * encoder (JpegEncoder). The Android decoders and Canvas aren't
+ * available off-device, so ImageIO and Java2D stand in for them; those
+ * stages only show what the library code sits between.
+ *
+ * extract() and ladder() port the resampling MultiRegionCrop and
+ * OutputLadder hand to Canvas onto plain Java pixel arrays, driven by the
+ * library's transform and size math, with a bilinear filter like
+ * Paint.FILTER_BITMAP_FLAG.
+ */
+final class PipelineStages {
+
+    // Longest side of the preview, like a typical screen-sized preview decode.
+    static final int PREVIEW_SIZE = 2048;
+    // Output bounds (maxX/maxY) used for the resample stage.
+    static final int OUTPUT_SIZE = 1024;
+    // Touch events in the simulated crop gesture.
+    static final int GESTURE_STEPS = 200000;
+    // Output sizes (longest edge) of the ladder stage, like an avatar ladder.
+    static final int[] LADDER_SIZES = { OUTPUT_SIZE, 512, 128 };
+
+    // ARGB pixels, like a Bitmap.
+    static final class Pixels {
+        final int[] argb;
+        final int width, height;
+
+        Pixels(int width, int height) {
+            this(new int[width * height], width, height);
+        }
+
+        Pixels(int[] argb, int width, int height) {
+            this.argb = argb;
+            this.width = width;
+            this.height = height;
+        }
+
+        static Pixels of(BufferedImage image) {
+            int width = image.getWidth(), height = image.getHeight();
+            return new Pixels(image.getRGB(0, 0, width, height, null, 0, width), width, height);
+        }
+    }
+
+    private PipelineStages() {
+    }
+
+    // Image size without decoding pixels, like inJustDecodeBounds.
+    static int[] probe(File source) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(source);
+        try {
+            ImageReader reader = ImageIO.getImageReaders(in).next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // The preview decode: the whole image, subsampled to about PREVIEW_SIZE.
+    static BufferedImage decodePreview(File source, int width, int height) throws IOException {
+        int sampleSize = 1;
+        while (Math.max(width, height) / (sampleSize * 2) >= PREVIEW_SIZE) {
+            sampleSize *= 2;
+        }
+        return decode(source, null, sampleSize);
+    }
+
+    /**
+     * The decodeRegionCrop stage: maps the default crop rectangle (4/5 of the
+     * shorter side, centered, in the rotated image) back to the stored image
+     * and decodes only that region.
+     */
+    static BufferedImage decodeRegion(File source, int width, int height, int rotation)
+            throws IOException {
+        return decode(source, cropRegion(width, height, rotation), 1);
+    }
+
+    static Rectangle cropRegion(int width, int height, int rotation) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int rotatedWidth = swap ? height : width;
+        int rotatedHeight = swap ? width : height;
+        int cropSize = Math.min(rotatedWidth, rotatedHeight) * 4 / 5;
+        float[] rect = {
+            (rotatedWidth - cropSize) / 2, (rotatedHeight - cropSize) / 2,
+            (rotatedWidth + cropSize) / 2, (rotatedHeight + cropSize) / 2
+        };
+        CropGeometry.unrotate(rect, rotation, width, height);
+        return new Rectangle((int) rect[0], (int) rect[1],
+                (int) (rect[2] - rect[0]), (int) (rect[3] - rect[1]));
+    }
+
+    /**
+     * The library's geometry over a crop gesture on a width x height image:
+     * hit tests, moves and resizes of the crop rectangle per touch event,
+     * then the mapping to the stored image and the output size on save.
+     *
+     * @return a checksum, so the work can't be optimized away
+     */
+    static float geometry(int width, int height, int rotation) {
+        float[] image = { 0, 0, width, height };
+        float[] crop = { width / 4F, height / 4F, width * 3 / 4F, height * 3 / 4F };
+        int[] outSize = new int[2];
+        float step = Math.max(1F, Math.min(width, height) / 500F);
+        float sum = 0;
+        for (int i = 0; i < GESTURE_STEPS; i++) {
+            // alternate direction so the rectangle stays away from the edges
+            step = -step;
+            sum += touch(crop, image, i, step);
+        }
+        for (int i = 0; i < GESTURE_STEPS / 10; i++) {
+            sum += save(crop, rotation, width, height, outSize);
+        }
+        return sum;
+    }
+
+    // One touch event, per call so the JIT compiles it like the view's handler.
+    private static int touch(float[] crop, float[] image, int i, float step) {
+        int hit = CropGeometry.getHit(crop, crop[CropGeometry.LEFT] + 2,
+                CropGeometry.centerY(crop), (i & 1) == 0, 20F);
+        if ((hit & CropGeometry.MOVE) != 0 || (i & 3) == 0) {
+            CropGeometry.moveBy(crop, image, step, step);
+        } else {
+            CropGeometry.growBy(crop, image, step, (i & 2) == 0 ? step : 0,
+                    (i & 4) == 0, 4F / 3F);
+        }
+        return hit;
+    }
+
+    private static float save(float[] crop, int rotation, int width, int height, int[] outSize) {
+        float[] rect = crop.clone();
+        CropGeometry.unrotate(rect, rotation, width, height);
+        CropGeometry.fitOutputSize((int) (rect[2] - rect[0]), (int) (rect[3] - rect[1]),
+                OUTPUT_SIZE, OUTPUT_SIZE, outSize);
+        return rect[0] + outSize[0];
+    }
+
+    /**
+     * The library's JpegEncoder on the output, fed in strips the way
+     * OutputEncoder does from a Bitmap (see JpegEncoderBenchmark).
+     *
+     * @return the number of bytes written
+     */
+    static int encodeLibrary(BufferedImage image, int quality, boolean optimize)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JpegEncoderBenchmark.encode(image, optimize ? "optimized-420" : "baseline-420",
+                quality, bytes);
+        return bytes.size();
+    }
+
+    /**
+     * MultiRegionCrop.extract(): the whole crop rotated and scaled to fit
+     * OUTPUT_SIZE, through {@link CropGeometry#extractTransform}.
+     */
+    static Pixels extract(Pixels crop, int rotation) {
+        boolean swap = rotation % 180 != 0;
+        int[] outSize = new int[2];
+        CropGeometry.fitOutputSize(swap ? crop.height : crop.width,
+                swap ? crop.width : crop.height, OUTPUT_SIZE, OUTPUT_SIZE, outSize);
+        float[] m = new float[9];
+        CropGeometry.extractTransform(new float[] { 0, 0, crop.width, crop.height },
+                rotation, outSize[0], outSize[1], m);
+
+        // sample the source at the inverse of each output pixel center
+        float det = m[0] * m[4] - m[1] * m[3];
+        float ia = m[4] / det, ib = -m[1] / det, id = -m[3] / det, ie = m[0] / det;
+        Pixels out = new Pixels(outSize[0], outSize[1]);
+        int i = 0;
+        for (int y = 0; y < out.height; y++) {
+            float dy = y + 0.5F - m[5];
+            for (int x = 0; x < out.width; x++) {
+                float dx = x + 0.5F - m[2];
+                out.argb[i++] = sample(crop, ia * dx + ib * dy - 0.5F, id * dx + ie * dy - 0.5F);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * OutputLadder.build(): LADDER_SIZES derived from top through filtered
+     * halvings, plus one bilinear scale where a size isn't a halving.
+     *
+     * @return a checksum, so the work can't be optimized away
+     */
+    static int ladder(Pixels top) {
+        int[] target = new int[2];
+        int sum = 0;
+        Pixels current = top;
+        for (int size : LADDER_SIZES) {
+            CropGeometry.fitOutputSize(top.width, top.height, size, size, target);
+            while (current.width / 2 >= target[0] && current.height / 2 >= target[1]) {
+                current = halve(current);
+            }
+            Pixels level = current;
+            if (current.width != target[0] || current.height != target[1]) {
+                level = scale(current, target[0], target[1]);
+            }
+            sum += level.argb[level.argb.length / 2];
+        }
+        return sum;
+    }
+
+    // Each pixel averages a 2x2 block, what a filtered half size draw samples.
+    private static Pixels halve(Pixels in) {
+        Pixels out = new Pixels(in.width / 2, in.height / 2);
+        for (int y = 0; y < out.height; y++) {
+            int row0 = 2 * y * in.width, row1 = row0 + in.width;
+            for (int x = 0; x < out.width; x++) {
+                int a = in.argb[row0 + 2 * x], b = in.argb[row0 + 2 * x + 1];
+                int c = in.argb[row1 + 2 * x], d = in.argb[row1 + 2 * x + 1];
+                int argb = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((a >>> shift) & 0xff) + ((b >>> shift) & 0xff)
+                            + ((c >>> shift) & 0xff) + ((d >>> shift) & 0xff);
+                    argb |= ((sum + 2) >> 2) << shift;
+                }
+                out.argb[y * out.width + x] = argb;
+            }
+        }
+        return out;
+    }
+
+    private static Pixels scale(Pixels in, int width, int height) {
+        Pixels out = new Pixels(width, height);
+        float sx = (float) in.width / width, sy = (float) in.height / height;
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                out.argb[i++] = sample(in, (x + 0.5F) * sx - 0.5F, (y + 0.5F) * sy - 0.5F);
+            }
+        }
+        return out;
+    }
+
+    // Bilinear sample at (x, y) in pixel index coordinates, edges clamped.
+    private static int sample(Pixels in, float x, float y) {
+        x = Math.max(0, Math.min(in.width - 1, x));
+        y = Math.max(0, Math.min(in.height - 1, y));
+        int x0 = (int) x, y0 = (int) y;
+        int x1 = Math.min(in.width - 1, x0 + 1), y1 = Math.min(in.height - 1, y0 + 1);
+        int fx = (int) ((x - x0) * 256), fy = (int) ((y - y0) * 256);
+        int a = in.argb[y0 * in.width + x0], b = in.argb[y0 * in.width + x1];
+        int c = in.argb[y1 * in.width + x0], d = in.argb[y1 * in.width + x1];
+        int argb = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int top = ((a >>> shift) & 0xff) * (256 - fx) + ((b >>> shift) & 0xff) * fx;
+            int bottom = ((c >>> shift) & 0xff) * (256 - fx) + ((d >>> shift) & 0xff) * fx;
+            argb |= (((top * (256 - fy) + bottom * fy) + (1 << 15)) >> 16) << shift;
+        }
+        return argb;
+    }
+
+    static BufferedImage decode(File source, Rectangle region, int sampleSize) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(source);
+        try {
+            ImageReader reader = ImageIO.getImageReaders(in).next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Scales the crop down to fit OUTPUT_SIZE, like inMemoryCrop's canvas draw.
+    static BufferedImage resample(BufferedImage source) {
+        int[] size = new int[2];
+        CropGeometry.fitOutputSize(source.getWidth(), source.getHeight(),
+                OUTPUT_SIZE, OUTPUT_SIZE, size);
+        BufferedImage out = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, size[0], size[1], null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    // Applies an EXIF rotation to the pixels.
+    static BufferedImage rotate(BufferedImage source, int rotation) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int width = swap ? source.getHeight() : source.getWidth();
+        int height = swap ? source.getWidth() : source.getHeight();
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            AffineTransform t = new AffineTransform();
+            t.translate(width / 2.0, height / 2.0);
+            t.rotate(Math.toRadians(rotation));
+            t.translate(-source.getWidth() / 2.0, -source.getHeight() / 2.0);
+            g.drawImage(source, t, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    // The saveOutput stage: JPEG at the given quality (saveOutput uses 100).
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
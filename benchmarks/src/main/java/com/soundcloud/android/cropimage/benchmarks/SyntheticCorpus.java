@@ -0,0 +1,101 @@
+package com.soundcloud.android.cropimage.benchmarks;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the source images used by the pipeline benchmarks: deterministic
+ * 4:3 photos-alike (gradients, edges and noise) of a given size in megapixels,
+ * written once into a cache directory and reused by later runs.
+ */
+final class SyntheticCorpus {
+
+    static final String DEFAULT_DIR = "target/corpus";
+
+    private SyntheticCorpus() {
+    }
+
+    static File get(int megapixels, String format) throws IOException {
+        return get(new File(System.getProperty("corpus.dir", DEFAULT_DIR)), megapixels, format);
+    }
+
+    static File get(File dir, int megapixels, String format) throws IOException {
+        File file = new File(dir, "synthetic-" + megapixels + "mp." + format);
+        if (file.exists()) {
+            return file;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+
+        BufferedImage image = generate(megapixels);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        if ("jpg".equals(format)) {
+            writeJpeg(image, tmp, 0.9f);
+        } else if (!ImageIO.write(image, format, tmp)) {
+            throw new IOException("no writer for " + format);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot rename " + tmp);
+        }
+        return file;
+    }
+
+    static int[] dimensions(int megapixels) {
+        // 4:3 like most camera sensors
+        int width = (int) Math.round(Math.sqrt(megapixels * 1000000.0 * 4 / 3));
+        int height = width * 3 / 4;
+        return new int[] { width, height };
+    }
+
+    static BufferedImage generate(int megapixels) {
+        int[] size = dimensions(megapixels);
+        final int width = size[0], height = size[1];
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        Random random = new Random(megapixels);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int gy = y * 255 / height;
+            for (int x = 0; x < width; x++) {
+                int gx = x * 255 / width;
+                int noise = random.nextInt(24) - 12;
+                // hard edges every 64 pixels, like the texture of real scenes
+                int block = ((x >> 6) + (y >> 6)) % 3 == 0 ? 40 : 0;
+                int r = clamp(gx + noise + block);
+                int g = clamp(gy + noise);
+                int b = clamp(255 - (gx + gy) / 2 + noise - block);
+                pixels[row + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+
+    static void writeJpeg(BufferedImage image, File file, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageOutputStream out = ImageIO.createImageOutputStream(file);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
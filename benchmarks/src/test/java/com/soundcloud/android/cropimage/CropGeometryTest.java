@@ -0,0 +1,146 @@
+package com.soundcloud.android.cropimage;
+
+import org.junit.Test;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CropGeometryTest {
+
+    private static final float EPSILON = 1e-3F;
+
+    // stored (unrotated) image
+    private static final int WIDTH = 400, HEIGHT = 300;
+
+    @Test
+    public void unrotateMatchesMatrixMapping() {
+        Random random = new Random(42);
+        for (int rotation : new int[] { 90, 180, 270 }) {
+            int rotatedWidth = rotation == 180 ? WIDTH : HEIGHT;
+            int rotatedHeight = rotation == 180 ? HEIGHT : WIDTH;
+            for (int i = 0; i < 100; i++) {
+                float left = random.nextInt(rotatedWidth - 1);
+                float top = random.nextInt(rotatedHeight - 1);
+                float right = left + 1 + random.nextInt(rotatedWidth - (int) left - 1);
+                float bottom = top + 1 + random.nextInt(rotatedHeight - (int) top - 1);
+
+                float[] rect = { left, top, right, bottom };
+                CropGeometry.unrotate(rect, rotation, WIDTH, HEIGHT);
+                assertArrayEquals("rotation " + rotation,
+                        matrixUnrotate(left, top, right, bottom, rotation), rect, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void unrotateKeepsUnrotatedRect() {
+        float[] rect = { 10, 20, 110, 220 };
+        CropGeometry.unrotate(rect, 0, WIDTH, HEIGHT);
+        assertArrayEquals(new float[] { 10, 20, 110, 220 }, rect, 0);
+    }
+
+    @Test
+    public void growByClampsToImageWidthKeepingAspect() {
+        float[] image = { 0, 0, WIDTH, HEIGHT };
+        float[] crop = { 100, 100, 300, 200 };
+        CropGeometry.growBy(crop, image, 150, 0, true, 2F);
+
+        assertArrayEquals(new float[] { 0, 50, 400, 250 }, crop, EPSILON);
+        assertAspect(2F, crop);
+    }
+
+    @Test
+    public void growByClampsToImageHeightKeepingAspect() {
+        float[] image = { 0, 0, WIDTH, HEIGHT };
+        float[] crop = { 150, 100, 250, 200 };
+        CropGeometry.growBy(crop, image, 150, 0, true, 1F);
+
+        assertArrayEquals(new float[] { 50, 0, 350, 300 }, crop, EPSILON);
+        assertAspect(1F, crop);
+    }
+
+    @Test
+    public void growByDerivesWidthFromHeight() {
+        float[] image = { 0, 0, WIDTH, HEIGHT };
+        float[] crop = { 150, 100, 250, 150 };
+        CropGeometry.growBy(crop, image, 0, 10, true, 2F);
+
+        assertArrayEquals(new float[] { 130, 90, 270, 160 }, crop, EPSILON);
+        assertAspect(2F, crop);
+    }
+
+    @Test
+    public void growByStopsAtMinimumSizeKeepingAspect() {
+        float[] image = { 0, 0, WIDTH, HEIGHT };
+        float[] crop = { 150, 125, 250, 175 };
+        CropGeometry.growBy(crop, image, -40, 0, true, 2F);
+
+        assertEquals(CropGeometry.MIN_CROP_WIDTH, crop[CropGeometry.RIGHT] - crop[CropGeometry.LEFT],
+                EPSILON);
+        assertAspect(2F, crop);
+        assertEquals(200F, CropGeometry.centerX(crop), EPSILON);
+        assertEquals(150F, CropGeometry.centerY(crop), EPSILON);
+    }
+
+    @Test
+    public void growByWithoutAspectStaysInsideImage() {
+        float[] image = { 0, 0, WIDTH, HEIGHT };
+        float[] crop = { 300, 10, 390, 100 };
+        CropGeometry.growBy(crop, image, 30, 5, false, 1F);
+
+        assertTrue(crop[CropGeometry.LEFT] >= 0 && crop[CropGeometry.RIGHT] <= WIDTH);
+        assertTrue(crop[CropGeometry.TOP] >= 0 && crop[CropGeometry.BOTTOM] <= HEIGHT);
+        assertEquals(150F, crop[CropGeometry.RIGHT] - crop[CropGeometry.LEFT], EPSILON);
+        assertEquals(100F, crop[CropGeometry.BOTTOM] - crop[CropGeometry.TOP], EPSILON);
+    }
+
+    @Test
+    public void extractTransformMatchesMatrixSequence() {
+        float[] src = { 13, 7, 113, 57 };
+        for (int rotation : new int[] { 0, 90, 180, 270 }) {
+            // MultiRegionCrop.extract() before: translate, rotate, move to the
+            // origin, scale to the output
+            AffineTransform t = AffineTransform.getTranslateInstance(-src[0], -src[1]);
+            t.preConcatenate(AffineTransform.getRotateInstance(Math.toRadians(rotation)));
+            Rectangle2D bounds = t.createTransformedShape(
+                    new Rectangle2D.Float(src[0], src[1], src[2] - src[0], src[3] - src[1]))
+                    .getBounds2D();
+            t.preConcatenate(AffineTransform.getTranslateInstance(-bounds.getMinX(), -bounds.getMinY()));
+            t.preConcatenate(AffineTransform.getScaleInstance(
+                    40 / bounds.getWidth(), 25 / bounds.getHeight()));
+
+            float[] values = new float[9];
+            CropGeometry.extractTransform(src, rotation, 40, 25, values);
+            assertArrayEquals("rotation " + rotation, new float[] {
+                (float) t.getScaleX(), (float) t.getShearX(), (float) t.getTranslateX(),
+                (float) t.getShearY(), (float) t.getScaleY(), (float) t.getTranslateY(),
+                0, 0, 1
+            }, values, EPSILON);
+        }
+    }
+
+    // The mapping decodeRegionCrop() used: rotate back around the origin,
+    // then move the result into the positive quadrant.
+    private static float[] matrixUnrotate(float left, float top, float right, float bottom,
+                                          int rotation) {
+        AffineTransform rotate = AffineTransform.getRotateInstance(Math.toRadians(-rotation));
+        Rectangle2D mapped = rotate.createTransformedShape(
+                new Rectangle2D.Float(left, top, right - left, bottom - top)).getBounds2D();
+        double dx = mapped.getMinX() < -EPSILON ? WIDTH : 0;
+        double dy = mapped.getMinY() < -EPSILON ? HEIGHT : 0;
+        return new float[] {
+            (float) (mapped.getMinX() + dx), (float) (mapped.getMinY() + dy),
+            (float) (mapped.getMaxX() + dx), (float) (mapped.getMaxY() + dy)
+        };
+    }
+
+    private static void assertAspect(float aspect, float[] crop) {
+        assertEquals(aspect, (crop[CropGeometry.RIGHT] - crop[CropGeometry.LEFT])
+                / (crop[CropGeometry.BOTTOM] - crop[CropGeometry.TOP]), EPSILON);
+    }
+}
@@ -0,0 +1,135 @@
+package com.soundcloud.android.cropimage;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegEncoderTest {
+
+    private static final int[][] SIZES = {
+        { 1, 1 }, { 7, 3 }, { 17, 9 }, { 33, 65 }, { 1023, 769 }
+    };
+    private static final int QUALITY = 90;
+    private static final double MIN_PSNR = 30;
+
+    @Test
+    public void baseline() throws IOException {
+        checkAllSizes(false, false, 1);
+    }
+
+    @Test
+    public void optimizedHuffman() throws IOException {
+        checkAllSizes(true, false, 1);
+    }
+
+    @Test
+    public void progressive() throws IOException {
+        checkAllSizes(false, true, 1);
+    }
+
+    @Test
+    public void optimizedProgressive() throws IOException {
+        checkAllSizes(true, true, 1);
+    }
+
+    @Test
+    public void threaded() throws IOException {
+        checkAllSizes(false, false, 4);
+    }
+
+    @Test
+    public void threadedOptimizedProgressive() throws IOException {
+        checkAllSizes(true, true, 4);
+    }
+
+    @Test
+    public void threadedDecodesLikeSingleThreaded() throws IOException {
+        // the restart markers change the stream, not the coefficients
+        int width = 1023, height = 769;
+        int[] argb = image(width, height);
+        for (int subsampling : new int[] { JpegEncoder.SUBSAMPLING_420, JpegEncoder.SUBSAMPLING_444 }) {
+            int[] single = decode(encode(argb, width, height, subsampling, false, false, 1));
+            int[] threaded = decode(encode(argb, width, height, subsampling, false, false, 4));
+            assertTrue("subsampling " + subsampling, Arrays.equals(single, threaded));
+        }
+    }
+
+    private static void checkAllSizes(boolean optimize, boolean progressive, int threads)
+            throws IOException {
+        for (int subsampling : new int[] { JpegEncoder.SUBSAMPLING_420, JpegEncoder.SUBSAMPLING_444 }) {
+            for (int[] size : SIZES) {
+                int width = size[0], height = size[1];
+                String name = width + "x" + height + " subsampling " + subsampling;
+
+                int[] argb = image(width, height);
+                byte[] jpeg = encode(argb, width, height, subsampling, optimize, progressive, threads);
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+
+                assertNotNull(name, decoded);
+                assertEquals(name, width, decoded.getWidth());
+                assertEquals(name, height, decoded.getHeight());
+                double psnr = psnr(argb, decoded.getRGB(0, 0, width, height, null, 0, width));
+                assertTrue(name + ": " + psnr + " dB", psnr >= MIN_PSNR);
+            }
+        }
+    }
+
+    private static byte[] encode(int[] argb, int width, int height, int subsampling,
+                                 boolean optimize, boolean progressive, int threads)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegEncoder encoder = new JpegEncoder(out, width, height, QUALITY);
+        encoder.setSubsampling(subsampling);
+        encoder.setOptimizeHuffman(optimize);
+        encoder.setProgressive(progressive);
+        encoder.setThreads(threads);
+        // in strips, the way OutputEncoder feeds it
+        for (int y = 0; y < height; y += 16) {
+            int rows = Math.min(16, height - y);
+            encoder.writeRows(argb, y * width, width, rows);
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    private static int[] decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    // Low-frequency colour waves, the same at every size so that small images
+    // don't get steeper chroma edges than 4:2:0 can keep.
+    private static int[] image(int width, int height) {
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (int) (128 + 100 * Math.sin(x / 13.0));
+                int g = (int) (128 + 100 * Math.cos(y / 11.0));
+                int b = (int) (128 + 100 * Math.sin(x / 23.0) * Math.cos(y / 17.0));
+                argb[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return argb;
+    }
+
+    private static double psnr(int[] expected, int[] actual) {
+        double sum = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int d = ((expected[i] >> shift) & 0xff) - ((actual[i] >> shift) & 0xff);
+                sum += d * d;
+            }
+        }
+        double mse = sum / (expected.length * 3);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+}
@@ -0,0 +1,66 @@
+package com.soundcloud.android.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes one or more image formats for the preview and the crop. Register
+ * implementations with {@link CropDecoders#register(CropDecoder)}: each
+ * source is routed, by the format sniffed from its first bytes, to the first
+ * registered decoder which can do what is needed, the platform decoders
+ * (BitmapFactory, BitmapRegionDecoder) take whatever is left.
+ *
+ * Formats are passed as mime types ("image/jpeg", ...), see
+ * {@link CropDecoders#sniff(byte[], int)}; null if the format is unknown.
+ */
+public interface CropDecoder {
+
+    /**
+     * Whether {@link #decode(InputStream, BitmapFactory.Options)} handles
+     * the format.
+     */
+    boolean canDecode(String mimeType);
+
+    /**
+     * Whether {@link #newRegionDecoder(InputStream)} handles the format.
+     * Sources no decoder can region decode are cropped from the preview.
+     */
+    boolean canDecodeRegion(String mimeType);
+
+    /**
+     * Decodes the whole image like BitmapFactory.decodeStream(): honours
+     * inSampleSize and inPreferredConfig, and with inJustDecodeBounds only
+     * sets outWidth and outHeight.
+     *
+     * @return null if the image can't be decoded
+     */
+    Bitmap decode(InputStream in, BitmapFactory.Options options) throws IOException;
+
+    /**
+     * Opens the image for decoding rectangles of it. The stream may be read
+     * completely before this returns.
+     */
+    RegionDecoder newRegionDecoder(InputStream in) throws IOException;
+
+    /**
+     * An open image, like BitmapRegionDecoder.
+     */
+    interface RegionDecoder {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Decodes rect, honouring inSampleSize and inPreferredConfig.
+         *
+         * @throws IllegalArgumentException if rect is outside of the image
+         */
+        Bitmap decodeRegion(Rect rect, BitmapFactory.Options options);
+
+        void recycle();
+    }
+}
@@ -0,0 +1,262 @@
+package com.soundcloud.android.cropimage;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The registry of {@link CropDecoder}s and the routing of sources to them.
+ *
+ * The format of a source is sniffed from its first bytes rather than taken
+ * from its Uri or mime type, which are often missing or wrong for content
+ * Uris. Registered decoders are asked in registration order; the platform
+ * decoders come last and handle everything BitmapFactory can decode, region
+ * decoding JPEG and PNG (and WebP from API 14). Sources no decoder can
+ * region decode are cropped from the preview.
+ */
+public final class CropDecoders {
+
+    private static final String TAG = CropDecoders.class.getSimpleName();
+
+    public static final String JPEG = "image/jpeg";
+    public static final String PNG = "image/png";
+    public static final String GIF = "image/gif";
+    public static final String WEBP = "image/webp";
+    public static final String BMP = "image/bmp";
+    public static final String HEIF = "image/heif";
+    public static final String AVIF = "image/avif";
+
+    // Enough for every signature sniff() knows.
+    static final int SNIFF_LENGTH = 12;
+
+    static final CropDecoder PLATFORM = new PlatformDecoder();
+
+    // guarded by sDecoders
+    private static final List<CropDecoder> sDecoders = new ArrayList<CropDecoder>();
+
+    private CropDecoders() {
+    }
+
+    /**
+     * Adds a decoder. Decoders are asked in the order they were registered,
+     * all before the platform decoders.
+     */
+    public static void register(CropDecoder decoder) {
+        synchronized (sDecoders) {
+            sDecoders.add(decoder);
+        }
+    }
+
+    public static void unregister(CropDecoder decoder) {
+        synchronized (sDecoders) {
+            sDecoders.remove(decoder);
+        }
+    }
+
+    /**
+     * @return the mime type of the image starting with header, null if it
+     *         isn't known
+     */
+    public static String sniff(byte[] header, int length) {
+        if (startsWith(header, length, 0, 0xff, 0xd8, 0xff)) return JPEG;
+        if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n')) return PNG;
+        if (startsWith(header, length, 0, 'G', 'I', 'F', '8')) return GIF;
+        if (startsWith(header, length, 0, 'R', 'I', 'F', 'F')
+                && startsWith(header, length, 8, 'W', 'E', 'B', 'P')) return WEBP;
+        if (startsWith(header, length, 4, 'f', 't', 'y', 'p')) {
+            if (startsWith(header, length, 8, 'a', 'v', 'i', 'f')) return AVIF;
+            if (startsWith(header, length, 8, 'h', 'e', 'i', 'c')
+                    || startsWith(header, length, 8, 'h', 'e', 'i', 'x')
+                    || startsWith(header, length, 8, 'm', 'i', 'f', '1')) return HEIF;
+        }
+        if (startsWith(header, length, 0, 'B', 'M')) return BMP;
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, int... signature) {
+        if (length < offset + signature.length) return false;
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[offset + i] & 0xff) != signature[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sniffs the format of a source (see CropSources for handles).
+     *
+     * @return null if it is unknown or can't be read
+     */
+    static String sniff(ContentResolver resolver, Uri uri) {
+        InputStream is = null;
+        try {
+            is = CropSources.openInputStream(resolver, uri);
+            if (is == null) return null;
+            byte[] header = new byte[SNIFF_LENGTH];
+            int length = 0, count;
+            while (length < header.length
+                    && (count = is.read(header, length, header.length - length)) != -1) {
+                length += count;
+            }
+            return sniff(header, length);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot sniff " + uri + ": " + e);
+            return null;
+        } finally {
+            Util.closeSilently(is);
+        }
+    }
+
+    // The decoder for whole images of the format, the platform's if no other.
+    static CropDecoder forDecode(String mimeType) {
+        synchronized (sDecoders) {
+            for (CropDecoder decoder : sDecoders) {
+                if (decoder.canDecode(mimeType)) return decoder;
+            }
+        }
+        return PLATFORM;
+    }
+
+    // The region decoder for the format, null if there is none.
+    static CropDecoder forRegion(String mimeType) {
+        synchronized (sDecoders) {
+            for (CropDecoder decoder : sDecoders) {
+                if (decoder.canDecodeRegion(mimeType)) return decoder;
+            }
+        }
+        return PLATFORM.canDecodeRegion(mimeType) ? PLATFORM : null;
+    }
+
+    static boolean canDecodeRegion(String mimeType) {
+        return forRegion(mimeType) != null;
+    }
+
+    /**
+     * Decodes a source of the given format (see sniff()).
+     *
+     * @return null if it can't be decoded
+     */
+    static Bitmap decode(ContentResolver resolver, Uri uri, String mimeType,
+                         BitmapFactory.Options options) throws IOException {
+        CropDecoder decoder = forDecode(mimeType);
+        if (decoder == PLATFORM) {
+            // handles are decoded in place
+            return CropSources.decode(resolver, uri, options);
+        }
+        InputStream is = open(resolver, uri);
+        try {
+            return decoder.decode(is, options);
+        } finally {
+            Util.closeSilently(is);
+        }
+    }
+
+    /**
+     * Opens a source for region decoding, sniffing its format.
+     *
+     * @throws IOException also if no decoder can region decode the format
+     */
+    static CropDecoder.RegionDecoder newRegionDecoder(ContentResolver resolver, Uri uri)
+            throws IOException {
+        String mimeType = sniff(resolver, uri);
+        CropDecoder decoder = getRegionDecoder(mimeType);
+        if (decoder == PLATFORM) {
+            return wrap(CropSources.newRegionDecoder(resolver, uri));
+        }
+        InputStream is = open(resolver, uri);
+        try {
+            return decoder.newRegionDecoder(is);
+        } finally {
+            Util.closeSilently(is);
+        }
+    }
+
+    /**
+     * Opens a file with the platform region decoder, for the crop process:
+     * decoders registered in the app's process are not registered there.
+     * The descriptor stays open.
+     */
+    @TargetApi(10)
+    static CropDecoder.RegionDecoder newPlatformRegionDecoder(FileDescriptor fd)
+            throws IOException {
+        return wrap(BitmapRegionDecoder.newInstance(fd, false));
+    }
+
+    private static CropDecoder getRegionDecoder(String mimeType) throws IOException {
+        CropDecoder decoder = forRegion(mimeType);
+        if (decoder == null) {
+            throw new IOException("cannot region decode " + mimeType);
+        }
+        return decoder;
+    }
+
+    private static InputStream open(ContentResolver resolver, Uri uri) throws IOException {
+        InputStream is = CropSources.openInputStream(resolver, uri);
+        if (is == null) {
+            throw new FileNotFoundException("cannot open " + uri);
+        }
+        return is;
+    }
+
+    /**
+     * Adapts a platform region decoder, which stays owned by the caller
+     * unless recycle() is called on the result.
+     */
+    @TargetApi(10)
+    static CropDecoder.RegionDecoder wrap(final BitmapRegionDecoder decoder) {
+        return new CropDecoder.RegionDecoder() {
+            public int getWidth() {
+                return decoder.getWidth();
+            }
+
+            public int getHeight() {
+                return decoder.getHeight();
+            }
+
+            public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+                return decoder.decodeRegion(rect, options);
+            }
+
+            public void recycle() {
+                decoder.recycle();
+            }
+        };
+    }
+
+    // BitmapFactory and BitmapRegionDecoder.
+    private static class PlatformDecoder implements CropDecoder {
+
+        public boolean canDecode(String mimeType) {
+            // whatever BitmapFactory makes of it
+            return true;
+        }
+
+        public boolean canDecodeRegion(String mimeType) {
+            if (CropImageActivity.IN_MEMORY_CROP) return false;
+            // unknown formats are tried, as before sniffing
+            return mimeType == null || JPEG.equals(mimeType) || PNG.equals(mimeType)
+                    || (WEBP.equals(mimeType) && Build.VERSION.SDK_INT >= 14);
+        }
+
+        public Bitmap decode(InputStream in, BitmapFactory.Options options) {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+
+        @TargetApi(10)
+        public RegionDecoder newRegionDecoder(InputStream in) throws IOException {
+            return wrap(BitmapRegionDecoder.newInstance(in, false));
+        }
+    }
+}
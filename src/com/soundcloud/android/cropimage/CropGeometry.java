@@ -0,0 +1,317 @@
+package com.soundcloud.android.cropimage;
+
+/**
+ * The crop math used by HighlightView and CropImageActivity, in plain Java so
+ * it can be benchmarked and tested off-device.
+ *
+ * Rectangles are float[4] arrays of {left, top, right, bottom}. All methods
+ * work in place or write into caller supplied arrays and never allocate.
+ */
+public final class CropGeometry {
+
+    public static final int LEFT   = 0;
+    public static final int TOP    = 1;
+    public static final int RIGHT  = 2;
+    public static final int BOTTOM = 3;
+
+    // Same values as the HighlightView constants.
+    public static final int GROW_NONE        = (1 << 0);
+    public static final int GROW_LEFT_EDGE   = (1 << 1);
+    public static final int GROW_RIGHT_EDGE  = (1 << 2);
+    public static final int GROW_TOP_EDGE    = (1 << 3);
+    public static final int GROW_BOTTOM_EDGE = (1 << 4);
+    public static final int MOVE             = (1 << 5);
+
+    // Smallest width the crop rectangle may shrink to, in image space.
+    public static final float MIN_CROP_WIDTH = 25F;
+
+    private CropGeometry() {
+    }
+
+    /**
+     * Moves the crop rectangle by (dx, dy) and puts it back inside the image
+     * rectangle.
+     */
+    public static void moveBy(float[] crop, float[] image, float dx, float dy) {
+        offset(crop, dx, dy);
+
+        offset(crop,
+                Math.max(0, image[LEFT] - crop[LEFT]),
+                Math.max(0, image[TOP]  - crop[TOP]));
+
+        offset(crop,
+                Math.min(0, image[RIGHT]  - crop[RIGHT]),
+                Math.min(0, image[BOTTOM] - crop[BOTTOM]));
+    }
+
+    /**
+     * Grows the crop rectangle by (dx, dy) on each side, optionally keeping
+     * the given aspect ratio (width / height), without leaving the image
+     * rectangle or shrinking below {@link #MIN_CROP_WIDTH}.
+     */
+    public static void growBy(float[] crop, float[] image, float dx, float dy,
+                              boolean maintainAspectRatio, float aspectRatio) {
+        if (maintainAspectRatio) {
+            if (dx != 0) {
+                dy = dx / aspectRatio;
+            } else if (dy != 0) {
+                dx = dy * aspectRatio;
+            }
+        }
+
+        float left = crop[LEFT], top = crop[TOP];
+        float right = crop[RIGHT], bottom = crop[BOTTOM];
+        final float imageWidth  = image[RIGHT]  - image[LEFT];
+        final float imageHeight = image[BOTTOM] - image[TOP];
+
+        // Don't let the cropping rectangle grow too fast.
+        // Grow at most half of the difference between the image rectangle and
+        // the cropping rectangle.
+        if (dx > 0F && (right - left) + 2 * dx > imageWidth) {
+            dx = (imageWidth - (right - left)) / 2F;
+            if (maintainAspectRatio) {
+                dy = dx / aspectRatio;
+            }
+        }
+        if (dy > 0F && (bottom - top) + 2 * dy > imageHeight) {
+            dy = (imageHeight - (bottom - top)) / 2F;
+            if (maintainAspectRatio) {
+                dx = dy * aspectRatio;
+            }
+        }
+
+        left -= dx;
+        right += dx;
+        top -= dy;
+        bottom += dy;
+
+        // Don't let the cropping rectangle shrink too fast.
+        final float widthCap = MIN_CROP_WIDTH;
+        if (right - left < widthCap) {
+            float d = (widthCap - (right - left)) / 2F;
+            left -= d;
+            right += d;
+        }
+        float heightCap = maintainAspectRatio
+                ? (widthCap / aspectRatio)
+                : widthCap;
+        if (bottom - top < heightCap) {
+            float d = (heightCap - (bottom - top)) / 2F;
+            top -= d;
+            bottom += d;
+        }
+
+        // Put the cropping rectangle inside the image rectangle.
+        if (left < image[LEFT]) {
+            right += image[LEFT] - left;
+            left = image[LEFT];
+        } else if (right > image[RIGHT]) {
+            left -= right - image[RIGHT];
+            right = image[RIGHT];
+        }
+        if (top < image[TOP]) {
+            bottom += image[TOP] - top;
+            top = image[TOP];
+        } else if (bottom > image[BOTTOM]) {
+            top -= bottom - image[BOTTOM];
+            bottom = image[BOTTOM];
+        }
+
+        crop[LEFT] = left;
+        crop[TOP] = top;
+        crop[RIGHT] = right;
+        crop[BOTTOM] = bottom;
+    }
+
+    /**
+     * Determines which edges of the rectangle (in screen space) are hit by
+     * touching at (x, y).
+     */
+    public static int getHit(float[] rect, float x, float y, boolean circle,
+                             float hysteresis) {
+        int retval = GROW_NONE;
+
+        if (circle) {
+            float distX = x - centerX(rect);
+            float distY = y - centerY(rect);
+            int distanceFromCenter =
+                    (int) Math.sqrt(distX * distX + distY * distY);
+            int radius  = (int) (rect[RIGHT] - rect[LEFT]) / 2;
+            int delta = distanceFromCenter - radius;
+            if (Math.abs(delta) <= hysteresis) {
+                if (Math.abs(distY) > Math.abs(distX)) {
+                    if (distY < 0) {
+                        retval = GROW_TOP_EDGE;
+                    } else {
+                        retval = GROW_BOTTOM_EDGE;
+                    }
+                } else {
+                    if (distX < 0) {
+                        retval = GROW_LEFT_EDGE;
+                    } else {
+                        retval = GROW_RIGHT_EDGE;
+                    }
+                }
+            } else if (distanceFromCenter < radius) {
+                retval = MOVE;
+            } else {
+                retval = GROW_NONE;
+            }
+        } else {
+            // verticalCheck makes sure the position is between the top and
+            // the bottom edge (with some tolerance). Similar for horizCheck.
+            boolean verticalCheck = (y >= rect[TOP] - hysteresis)
+                    && (y < rect[BOTTOM] + hysteresis);
+            boolean horizCheck = (x >= rect[LEFT] - hysteresis)
+                    && (x < rect[RIGHT] + hysteresis);
+
+            // Check whether the position is near some edge(s).
+            if ((Math.abs(rect[LEFT] - x)   < hysteresis)  &&  verticalCheck) {
+                retval |= GROW_LEFT_EDGE;
+            }
+            if ((Math.abs(rect[RIGHT] - x)  < hysteresis)  &&  verticalCheck) {
+                retval |= GROW_RIGHT_EDGE;
+            }
+            if ((Math.abs(rect[TOP] - y)    < hysteresis)  &&  horizCheck) {
+                retval |= GROW_TOP_EDGE;
+            }
+            if ((Math.abs(rect[BOTTOM] - y) < hysteresis)  &&  horizCheck) {
+                retval |= GROW_BOTTOM_EDGE;
+            }
+
+            // Not near any edge but inside the rectangle: move.
+            if (retval == GROW_NONE && contains(rect, (int) x, (int) y)) {
+                retval = MOVE;
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Computes the output size of a width x height crop scaled down to fit
+     * into maxX x maxY, keeping its aspect ratio. A max of 0 means no limit.
+     *
+     * @param out receives {width, height}
+     */
+    public static void fitOutputSize(int width, int height, int maxX, int maxY, int[] out) {
+        int outWidth = width, outHeight = height;
+        if (maxX > 0 && maxY > 0 && (width > maxX || height > maxY)) {
+            float ratio = (float) width / (float) height;
+            if ((float) maxX / (float) maxY > ratio) {
+                outHeight = maxY;
+                outWidth = (int) ((float) maxY * ratio + .5f);
+            } else {
+                outWidth = maxX;
+                outHeight = (int) ((float) maxX / ratio + .5f);
+            }
+        }
+        out[0] = outWidth;
+        out[1] = outHeight;
+    }
+
+    /**
+     * Maps a rectangle from the coordinates of the image rotated by the EXIF
+     * rotation back to the coordinates of the stored (unrotated) image.
+     *
+     * @param rotation the EXIF rotation, one of 0, 90, 180 and 270
+     * @param width width of the stored image
+     * @param height height of the stored image
+     */
+    public static void unrotate(float[] rect, int rotation, int width, int height) {
+        final float left = rect[LEFT], top = rect[TOP];
+        final float right = rect[RIGHT], bottom = rect[BOTTOM];
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                rect[LEFT] = top;
+                rect[TOP] = height - right;
+                rect[RIGHT] = bottom;
+                rect[BOTTOM] = height - left;
+                break;
+            case 180:
+                rect[LEFT] = width - right;
+                rect[TOP] = height - bottom;
+                rect[RIGHT] = width - left;
+                rect[BOTTOM] = height - top;
+                break;
+            case 270:
+                rect[LEFT] = width - bottom;
+                rect[TOP] = left;
+                rect[RIGHT] = width - top;
+                rect[BOTTOM] = right;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The affine transformation which draws src (in source bitmap
+     * coordinates) rotated by rotation and scaled to exactly outWidth x
+     * outHeight at the origin, as MultiRegionCrop.extract() draws a crop.
+     *
+     * @param rotation clockwise, one of 0, 90, 180 and 270
+     * @param out receives the 9 values of a 3x3 matrix in the order of
+     *            android.graphics.Matrix.setValues()
+     */
+    public static void extractTransform(float[] src, int rotation, int outWidth, int outHeight,
+                                        float[] out) {
+        final float width = src[RIGHT] - src[LEFT];
+        final float height = src[BOTTOM] - src[TOP];
+        int cos, sin;
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                cos = 0;
+                sin = 1;
+                break;
+            case 180:
+                cos = -1;
+                sin = 0;
+                break;
+            case 270:
+                cos = 0;
+                sin = -1;
+                break;
+            default:
+                cos = 1;
+                sin = 0;
+                break;
+        }
+        // bounds of the rotated rectangle, which starts at the origin
+        float minX = Math.min(Math.min(0, cos * width), Math.min(-sin * height, cos * width - sin * height));
+        float minY = Math.min(Math.min(0, sin * width), Math.min(cos * height, sin * width + cos * height));
+        float scaleX = outWidth / (Math.abs(cos) * width + Math.abs(sin) * height);
+        float scaleY = outHeight / (Math.abs(sin) * width + Math.abs(cos) * height);
+
+        out[0] = scaleX * cos;
+        out[1] = -scaleX * sin;
+        out[2] = scaleX * (-cos * src[LEFT] + sin * src[TOP] - minX);
+        out[3] = scaleY * sin;
+        out[4] = scaleY * cos;
+        out[5] = scaleY * (-sin * src[LEFT] - cos * src[TOP] - minY);
+        out[6] = 0;
+        out[7] = 0;
+        out[8] = 1;
+    }
+
+    public static void offset(float[] rect, float dx, float dy) {
+        rect[LEFT] += dx;
+        rect[TOP] += dy;
+        rect[RIGHT] += dx;
+        rect[BOTTOM] += dy;
+    }
+
+    public static float centerX(float[] rect) {
+        return (rect[LEFT] + rect[RIGHT]) * 0.5f;
+    }
+
+    public static float centerY(float[] rect) {
+        return (rect[TOP] + rect[BOTTOM]) * 0.5f;
+    }
+
+    // Same semantics as android.graphics.Rect.contains(int, int).
+    static boolean contains(float[] rect, int x, int y) {
+        return rect[LEFT] < rect[RIGHT] && rect[TOP] < rect[BOTTOM]
+                && x >= rect[LEFT] && x < rect[RIGHT]
+                && y >= rect[TOP] && y < rect[BOTTOM];
+    }
+}
@@ -20,17 +20,19 @@ package com.soundcloud.android.cropimage;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Rect;
@@ -40,9 +42,11 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 
@@ -61,6 +65,7 @@ public class CropImageActivity extends MonitoredActivity {
     // scale the output to fit it (or just crop it).
     private int mMaxX, mMaxY, mExifRotation;
     private Uri mSaveUri;
+    private OutputEncoder mEncoder;
 
     private boolean mSaving; // Whether the "save" button is already clicked.
 
@@ -70,6 +75,54 @@ public class CropImageActivity extends MonitoredActivity {
 
     private Uri mSourceUri;
 
+    // Set when several crops are requested through the "regions" extra.
+    private ArrayList<MultiRegionCrop.Region> mRegions;
+    // Set when several sizes of the crop are requested through "output-sizes".
+    private OutputLadder mLadder;
+    // Return the crop geometry and a small preview instead of cropped pixels.
+    private boolean mReturnGeometry;
+    private int mGeometryPreviewSize;
+    // Record the crop and encode it when the returned Uri is first read.
+    private boolean mLazyOutput;
+    // Decode and encode the crop in the crop process, see CropService.
+    private boolean mCropProcess;
+
+    static final int DEFAULT_GEOMETRY_PREVIEW_SIZE = 256;
+
+    private final CropSessionMetrics mMetrics = new CropSessionMetrics();
+    private boolean mReturnMetrics;
+    private boolean mMetricsReported;
+
+    // Set when the source is a Bitmap registered with CropSources.
+    private boolean mInMemorySource;
+    // Dimensions of the stored source, read once.
+    private int[] mSourceSize;
+    // Output pixel format set by the caller, see PixelFormatPolicy otherwise.
+    private Bitmap.Config mOutputConfig;
+    private boolean mSourceHasAlpha;
+    // Set when the preview is handed to the next instance.
+    private boolean mRetained;
+    // Crop rectangles (image space), focus and zoom saved in the instance state.
+    private ArrayList<RectF> mSavedCropRects;
+    private int mSavedFocus;
+    private float mSavedScale;
+
+    private PreviewLoader mPreviewLoader;
+    // Set when a list of sources is cropped, see CropSession.
+    private CropSession mSession;
+    // Set while the preview is released for memory, see dropPreview().
+    private boolean mPreviewDropped;
+
+    // What survives a configuration change, see onRetainNonConfigurationInstance().
+    private static class RetainedState {
+        RotateBitmap rotateBitmap;
+        int exifRotation;
+        int[] sourceSize;
+        PreviewLoader previewLoader;
+        boolean inMemorySource;
+        CropSession session;
+    }
+
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
@@ -78,7 +131,6 @@ public class CropImageActivity extends MonitoredActivity {
         setContentView(R.layout.cropimage);
 
         mImageView = (CropImageView) findViewById(R.id.cropimage_image);
-        mImageView.mContext = this;
         mImageView.setRecycler(new ImageViewTouchBase.Recycler() {
             @Override
             public void recycle(Bitmap b) {
@@ -90,36 +142,113 @@ public class CropImageActivity extends MonitoredActivity {
         Intent intent = getIntent();
         Bundle extras = intent.getExtras();
 
+        if (icicle != null) {
+            mSavedCropRects = icicle.getParcelableArrayList("crop-rects");
+            mSavedFocus = icicle.getInt("crop-focus");
+            mSavedScale = icicle.getFloat("crop-scale");
+        }
+
+        // Callers may pass the uptime at which they sent the intent to have the
+        // activity launch included in the first frame stage.
+        mMetrics.begin(CropSessionMetrics.STAGE_FIRST_FRAME,
+                intent.getLongExtra("launch-time", SystemClock.uptimeMillis()));
+
         if (extras != null) {
+            mReturnMetrics = extras.getBoolean("return-metrics");
             mAspectX = extras.getInt("aspectX");
             mAspectY = extras.getInt("aspectY");
             mMaxX = extras.getInt("maxX");
             mMaxY = extras.getInt("maxY");
             mSaveUri = (Uri) extras.getParcelable(MediaStore.EXTRA_OUTPUT);
+            mRegions = MultiRegionCrop.fromExtras(extras);
+            mReturnGeometry = extras.getBoolean("return-geometry");
+            mGeometryPreviewSize = extras.getInt("preview-size", DEFAULT_GEOMETRY_PREVIEW_SIZE);
+            mLazyOutput = extras.getBoolean("lazy-output");
+            mCropProcess = extras.getBoolean("crop-process");
+            try {
+                mLadder = OutputLadder.fromExtras(extras);
+                mEncoder = OutputEncoder.fromExtras(extras);
+                mSession = CropSession.fromExtras(extras, icicle);
+                String outputConfig = extras.getString("output-config");
+                if (outputConfig != null) {
+                    mOutputConfig = Bitmap.Config.valueOf(outputConfig.toUpperCase());
+                }
+            } catch (IllegalArgumentException e) {
+                setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
+                finish();
+                return;
+            }
+        }
+
+        if (mEncoder == null) {
+            mEncoder = OutputEncoder.fromExtras(null);
         }
 
         mSourceUri = intent.getData();
-        if (mSourceUri != null) {
-            mExifRotation = getExifRotation(getFromMediaUri(getContentResolver(), mSourceUri));
-            
-            // Can't assume that getExifRotation() will always return a valid number.
-            // This fixes the issue with the image viewer having a crooked image!
-            if (mExifRotation == -1)
-            	mExifRotation = 0;
-
-            InputStream is = null;
+        RetainedState retained = (RetainedState) getLastNonConfigurationInstance();
+        if (retained != null && retained.session != null) {
+            mSession = retained.session;
+        }
+        if (mSession != null) {
+            // the session says what is shown, not the intent data
+            mSourceUri = mSession.getSource();
+            mSaveUri = mSession.getOutput();
+        }
+        CropPrewarm.Result prewarmed;
+        if (retained != null && retained.rotateBitmap != null) {
+            // a configuration change: nothing to read or decode again
+            mRotateBitmap = retained.rotateBitmap;
+            mExifRotation = retained.exifRotation;
+            mSourceSize = retained.sourceSize;
+            mPreviewLoader = retained.previewLoader;
+            mInMemorySource = retained.inMemorySource;
+            mSourceHasAlpha = mRotateBitmap.getBitmap().hasAlpha();
+            mMetrics.bitmapAllocated(mRotateBitmap.getBitmap());
+        } else if (mSession != null && mSession.isBusy()) {
+            // a job of the previous instance delivers the next image here
+        } else if (CropSources.isBitmap(mSourceUri)) {
+            // already decoded, see CropSources
+            Bitmap source = CropSources.takeBitmap(mSourceUri);
+            if (source != null) {
+                mInMemorySource = true;
+                mSourceSize = new int[] { source.getWidth(), source.getHeight() };
+                mSourceHasAlpha = source.hasAlpha();
+                mRotateBitmap = new RotateBitmap(source, 0);
+                mMetrics.bitmapAllocated(source);
+            }
+        } else if (mSourceUri != null
+                && (prewarmed = CropPrewarm.adopt(mSourceUri)) != null) {
+            // decoded while the activity was starting, see CropPrewarm
+            mPreviewLoader = prewarmed.loader;
+            mExifRotation = mPreviewLoader.exifRotation;
+            mSourceSize = mPreviewLoader.sourceSize;
+            mRotateBitmap = new RotateBitmap(prewarmed.preview, mExifRotation);
+            mSourceHasAlpha = prewarmed.preview.hasAlpha();
+            mMetrics.bitmapAllocated(prewarmed.preview);
+        } else if (mSourceUri != null) {
+            mMetrics.begin(CropSessionMetrics.STAGE_PROBE);
+            mPreviewLoader = PreviewLoader.probe(this, mSourceUri, getPreviewCacheSize());
+            mExifRotation = mPreviewLoader.exifRotation;
+            mSourceSize = mPreviewLoader.sourceSize;
+            mMetrics.end(CropSessionMetrics.STAGE_PROBE);
+
             try {
-                is = getContentResolver().openInputStream(mSourceUri);
-                mRotateBitmap = new RotateBitmap(BitmapFactory.decodeStream(is), mExifRotation);
+                mMetrics.begin(CropSessionMetrics.STAGE_PREVIEW_DECODE);
+                mRotateBitmap = new RotateBitmap(mPreviewLoader.load(getContentResolver()),
+                        mExifRotation);
+                mMetrics.end(CropSessionMetrics.STAGE_PREVIEW_DECODE);
+                mSourceHasAlpha = mRotateBitmap.getBitmap() != null
+                        && mRotateBitmap.getBitmap().hasAlpha();
+                mMetrics.bitmapAllocated(mRotateBitmap.getBitmap());
             } catch (IOException e) {
                 Log.e(TAG, "error reading picture: " + e.getMessage(), e);
                 finish();
-            } finally {
-                Util.closeSilently(is);
             }
         }
 
-        if (mRotateBitmap == null) {
+        addLifeCycleListener(mMemoryListener);
+
+        if (mRotateBitmap == null && mSession == null) {
             finish();
             return;
         }
@@ -130,7 +259,11 @@ public class CropImageActivity extends MonitoredActivity {
         findViewById(R.id.cropimage_discard).setOnClickListener(
                 new View.OnClickListener() {
                     public void onClick(View v) {
-                        setResult(RESULT_CANCELED);
+                        if (mSession != null) {
+                            skipSessionImage();
+                            return;
+                        }
+                        setResult(RESULT_CANCELED, withMetrics(new Intent()));
                         finish();
                     }
                 });
@@ -141,9 +274,107 @@ public class CropImageActivity extends MonitoredActivity {
             }
         });
 
+        mImageView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    public boolean onPreDraw() {
+                        mMetrics.end(CropSessionMetrics.STAGE_FIRST_FRAME);
+                        mImageView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        return true;
+                    }
+                });
+
+        if (mSession != null) {
+            mSession.attach(mSessionHost);
+            if (mSession.isBusy()) {
+                mSaving = true;
+                if (mRotateBitmap != null) {
+                    startCrop();
+                    mImageView.setLocked(true);
+                }
+                return;
+            }
+            mSession.prefetchNext(this, getPreviewCacheSize());
+            if (mRotateBitmap == null || mRotateBitmap.getBitmap() == null) {
+                // the first source can't be read, go on with the next
+                mSaving = true;
+                startSessionJob(false);
+                return;
+            }
+        }
         startCrop();
     }
 
+    private long getPreviewCacheSize() {
+        Bundle extras = getIntent().getExtras();
+        return extras == null ? PreviewCache.DEFAULT_MAX_SIZE
+                : extras.getLong("preview-cache-size", PreviewCache.DEFAULT_MAX_SIZE);
+    }
+
+    // Gives memory back while the UI is hidden and restores it once visible.
+    private final LifeCycleListener mMemoryListener = new LifeCycleAdapter() {
+        private boolean mVisible;
+
+        @Override
+        public void onActivityTrimMemory(MonitoredActivity activity, int level) {
+            // rebuilt when the next gesture ends, which draws the full preview
+            mImageView.releaseProxy();
+            // onLowMemory() also comes while the user is cropping
+            if (level >= TRIM_MEMORY_BACKGROUND && !mVisible) {
+                dropPreview();
+            }
+        }
+
+        @Override
+        public void onActivityStarted(MonitoredActivity activity) {
+            mVisible = true;
+            if (mPreviewDropped) {
+                restorePreview();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(MonitoredActivity activity) {
+            mVisible = false;
+        }
+    };
+
+    /**
+     * Releases the preview while the activity is in the background, which
+     * makes the process less likely to be killed and the crop lost. The
+     * crop state is kept the same way as for a configuration change.
+     */
+    private void dropPreview() {
+        if (mSaving || mPreviewDropped || mInMemorySource || mRotateBitmap == null
+                || mRotateBitmap.getBitmap() == null || mImageView.mHighlightViews.isEmpty()) {
+            return;
+        }
+        saveCropState();
+        mImageView.mHighlightViews.clear();
+        mCrop = null;
+        clearImageView();
+        mRotateBitmap = null;
+        mPreviewDropped = true;
+    }
+
+    private void restorePreview() {
+        mPreviewDropped = false;
+        try {
+            mRotateBitmap = new RotateBitmap(mPreviewLoader.load(getContentResolver()),
+                    mExifRotation);
+        } catch (IOException e) {
+            Log.e(TAG, "error reading picture: " + e.getMessage(), e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "error reading picture: " + e.getMessage(), e);
+        }
+        if (mRotateBitmap == null || mRotateBitmap.getBitmap() == null) {
+            finish();
+            return;
+        }
+        mMetrics.bitmapAllocated(mRotateBitmap.getBitmap());
+        mImageView.setImageRotateBitmapResetBase(mRotateBitmap, true);
+        mRunCrop.run();
+    }
+
     private void startCrop() {
         if (isFinishing()) {
             return;
@@ -179,32 +410,33 @@ public class CropImageActivity extends MonitoredActivity {
         private void makeDefault() {
             if (mRotateBitmap == null) return;
 
-            HighlightView hv = new HighlightView(mImageView);
-            final int width  = mRotateBitmap.getWidth();
-            final int height = mRotateBitmap.getHeight();
-
-            Rect imageRect = new Rect(0, 0, width, height);
-
-            // make the default size about 4/5 of the width or height
-            int cropWidth = Math.min(width, height) * 4 / 5;
-            //noinspection SuspiciousNameCombination
-            int cropHeight = cropWidth;
-
-            if (mAspectX != 0 && mAspectY != 0) {
-                if (mAspectX > mAspectY) {
-                    cropHeight = cropWidth * mAspectY / mAspectX;
-                } else {
-                    cropWidth = cropHeight * mAspectX / mAspectY;
+            if (mRegions != null) {
+                for (int i = 0; i < mRegions.size(); i++) {
+                    MultiRegionCrop.Region region = mRegions.get(i);
+                    region.highlightView = makeHighlightView(region.aspectX, region.aspectY,
+                            getSavedCropRect(i));
+                    mImageView.add(region.highlightView);
                 }
+            } else {
+                mImageView.add(makeHighlightView(mAspectX, mAspectY, getSavedCropRect(0)));
             }
+        }
 
-            int x = (width - cropWidth) / 2;
-            int y = (height - cropHeight) / 2;
+        private RectF getSavedCropRect(int index) {
+            if (mSavedCropRects == null || index >= mSavedCropRects.size()) return null;
+            RectF saved = mSavedCropRects.get(index);
+            // the source may have changed while the process was gone
+            if (saved.left < 0 || saved.top < 0 || saved.isEmpty()
+                    || saved.right > 1 || saved.bottom > 1) {
+                return null;
+            }
+            float width = mRotateBitmap.getWidth(), height = mRotateBitmap.getHeight();
+            return new RectF(saved.left * width, saved.top * height,
+                    saved.right * width, saved.bottom * height);
+        }
 
-            RectF cropRect = new RectF(x, y, x + cropWidth, y + cropHeight);
-            hv.setup(mImageView.getUnrotatedMatrix(), imageRect, cropRect, false,
-                    mAspectX != 0 && mAspectY != 0);
-            mImageView.add(hv);
+        private HighlightView makeHighlightView(int aspectX, int aspectY, RectF saved) {
+            return mImageView.makeHighlightView(mRotateBitmap, aspectX, aspectY, saved);
         }
 
         public void run() {
@@ -212,10 +444,21 @@ public class CropImageActivity extends MonitoredActivity {
                 public void run() {
                     makeDefault();
                     mImageView.invalidate();
-                    if (mImageView.mHighlightViews.size() == 1) {
-                        mCrop = mImageView.mHighlightViews.get(0);
+                    if (!mImageView.mHighlightViews.isEmpty()) {
+                        int focus = mSavedFocus < mImageView.mHighlightViews.size()
+                                ? mSavedFocus : 0;
+                        mCrop = mImageView.mHighlightViews.get(focus);
                         mCrop.setFocus(true);
+                        if (mSavedScale > 1F) {
+                            // back to the zoom the user had, around the crop
+                            float[] center = { mCrop.mCropRect.centerX(), mCrop.mCropRect.centerY() };
+                            mImageView.getUnrotatedMatrix().mapPoints(center);
+                            mImageView.zoomTo(mSavedScale, center[0], center[1]);
+                            mImageView.center(true, true);
+                        }
                     }
+                    mSavedCropRects = null;
+                    mSavedScale = 0;
                 }
             });
         }
@@ -230,25 +473,46 @@ public class CropImageActivity extends MonitoredActivity {
         if (mSaving)
             return;
         mSaving = true;
+        mImageView.setLocked(true);
+
+        if (mSession != null) {
+            startSessionJob(true);
+            return;
+        }
+        if (mRegions != null) {
+            saveRegions();
+            return;
+        }
+        if (mLadder != null) {
+            saveLadder();
+            return;
+        }
+        if (mReturnGeometry) {
+            returnGeometry();
+            return;
+        }
+        if (mLazyOutput) {
+            returnLazyOutput();
+            return;
+        }
+        // the crop process only has the platform decoders, see CropService
+        if (mCropProcess && mSaveUri != null && getOutputFormat() != null
+                && !isInMemoryCrop() && !CropSources.isHandle(mSourceUri)
+                && CropDecoders.forRegion(getSourceFormat()) == CropDecoders.PLATFORM) {
+            saveInCropProcess();
+            return;
+        }
 
         Bitmap croppedImage = null;
         Rect r = mCrop.getCropRect();
         int width = r.width();
         int height = r.height();
 
-        int outWidth = width, outHeight = height;
-        if (mMaxX > 0 && mMaxY > 0 && (width > mMaxX || height > mMaxY)) {
-            float ratio = (float) width / (float) height;
-            if ((float) mMaxX / (float) mMaxY > ratio) {
-                outHeight = mMaxY;
-                outWidth = (int) ((float) mMaxY * ratio + .5f);
-            } else {
-                outWidth = mMaxX;
-                outHeight = (int) ((float) mMaxX / ratio + .5f);
-            }
-        }
+        int[] outSize = new int[2];
+        CropGeometry.fitOutputSize(width, height, mMaxX, mMaxY, outSize);
+        int outWidth = outSize[0], outHeight = outSize[1];
 
-        if (IN_MEMORY_CROP && mRotateBitmap != null) {
+        if (isInMemoryCrop() && mRotateBitmap != null) {
             croppedImage = inMemoryCrop(mRotateBitmap, croppedImage, r, width, height, outWidth, outHeight);
             if (croppedImage != null) {
                 mImageView.setImageBitmapResetBase(croppedImage, true);
@@ -259,7 +523,7 @@ public class CropImageActivity extends MonitoredActivity {
             try {
                 croppedImage = decodeRegionCrop(croppedImage, r);
             } catch (IllegalArgumentException e) {
-                setResult(RESULT_OK, new Intent().putExtra("error", e));
+                setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
                 finish();
                 return;
             }
@@ -273,14 +537,28 @@ public class CropImageActivity extends MonitoredActivity {
 
         // Return the cropped image directly or save it to the specified URI.
         Bundle myExtras = getIntent().getExtras();
-        if (myExtras != null && (myExtras.getParcelable("data") != null
+        if (myExtras != null && myExtras.getBoolean("return-data")
+                && "fd".equals(myExtras.getString("return-data-channel"))) {
+            if (croppedImage != null) {
+                final Bitmap b = croppedImage;
+                Util.startBackgroundJob(this, null,
+                        getResources().getString(R.string.savingImage),
+                        new Runnable() {
+                            public void run() {
+                                returnThroughFile(b);
+                            }
+                        }, mHandler);
+            } else {
+                finish();
+            }
+        } else if (myExtras != null && (myExtras.getParcelable("data") != null
                 || myExtras.getBoolean("return-data"))) {
             Bundle extras = new Bundle();
             if (croppedImage != null) {
                 extras.putParcelable("data", croppedImage);
             }
             setResult(RESULT_OK,
-                    (new Intent()).setAction("inline-data").putExtras(extras));
+                    withMetrics((new Intent()).setAction("inline-data").putExtras(extras)));
             finish();
         } else {
             if (croppedImage != null){
@@ -299,6 +577,537 @@ public class CropImageActivity extends MonitoredActivity {
         }
     }
 
+    /**
+     * Session mode: queues the save of the current crop, if save is set, and
+     * shows the next source that can be read. Returns the saved outputs after
+     * the last one.
+     */
+    private void startSessionJob(final boolean save) {
+        final Runnable queueSave = save ? prepareSessionSave() : null;
+        // the results go to whichever instance is shown by then, see CropSession
+        final CropSession session = mSession;
+        final Context context = getApplicationContext();
+        final long cacheSize = getPreviewCacheSize();
+        session.begin();
+        Util.startBackgroundJob(this, null,
+                getResources().getString(R.string.please_wait),
+                new Runnable() {
+                    public void run() {
+                        try {
+                            if (queueSave != null) {
+                                queueSave.run();
+                            }
+                            CropPrewarm.Result next = null;
+                            while (next == null && session.hasNext()) {
+                                next = session.next();
+                                if (next == null) {
+                                    // skipped, its output is not reported
+                                    session.prefetchNext(context, cacheSize);
+                                }
+                            }
+                            if (next == null) {
+                                session.awaitSave();
+                                session.postDone();
+                                return;
+                            }
+                            session.postImage(next);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            session.postDone();
+                        }
+                    }
+                }, mHandler);
+    }
+
+    private final CropSession.Host mSessionHost = new CropSession.Host() {
+        public void showSessionImage(CropPrewarm.Result next) {
+            CropImageActivity.this.showSessionImage(next);
+        }
+
+        public void returnSessionOutputs() {
+            CropImageActivity.this.returnSessionOutputs();
+        }
+    };
+
+    // Captures the current crop; the returned job (run off the UI thread) queues its save
+    // and only sees the captured rectangle, never the highlight view.
+    private Runnable prepareSessionSave() {
+        MultiRegionCrop.Region region =
+                new MultiRegionCrop.Region(mAspectX, mAspectY, mMaxX, mMaxY, null);
+        region.crop = mCrop.getCropRect();
+        final List<MultiRegionCrop.Region> regions = Collections.singletonList(region);
+        final RotateBitmap preview = isInMemoryCrop() ? mRotateBitmap : null;
+        final int[] previewSize = getPreviewSize();
+        // sized for what is decoded
+        final int[] size = MultiRegionCrop.getAllocationSize(regions,
+                preview == null ? getSourceScale() : 0);
+        final Bitmap.Config config = getOutputConfig(getOutputFormat(), size[0], size[1]);
+        final Uri source = mSourceUri;
+        final Uri output = mSaveUri;
+        final int rotation = mExifRotation;
+        final ContentResolver resolver = getContentResolver();
+        final CropSession session = mSession;
+
+        return new Runnable() {
+            public void run() {
+                try {
+                    // the previous crop is released before this one is cut
+                    session.awaitSave();
+                    final Bitmap prepared = preview == null ? null
+                            : MultiRegionCrop.crop(preview, regions, config, mMetrics)[0];
+                    session.save(new Callable<Boolean>() {
+                        public Boolean call() throws IOException {
+                            Bitmap crop = prepared != null ? prepared
+                                    : MultiRegionCrop.decode(resolver, source, rotation,
+                                            regions, previewSize, config, mMetrics)[0];
+                            try {
+                                mMetrics.begin(CropSessionMetrics.STAGE_ENCODE);
+                                OutputWriter.write(resolver, output, crop, mEncoder);
+                                mMetrics.end(CropSessionMetrics.STAGE_ENCODE);
+                                return true;
+                            } finally {
+                                mMetrics.bitmapReleased(crop);
+                                crop.recycle();
+                            }
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private void showSessionImage(CropPrewarm.Result next) {
+        if (isFinishing()) {
+            next.preview.recycle();
+            return;
+        }
+        mImageView.mHighlightViews.clear();
+        mCrop = null;
+        clearImageView();
+
+        mSourceUri = mSession.getSource();
+        mSaveUri = mSession.getOutput();
+        mPreviewLoader = next.loader;
+        mExifRotation = mPreviewLoader.exifRotation;
+        mSourceSize = mPreviewLoader.sourceSize;
+        mInMemorySource = false;
+        mSourceHasAlpha = next.preview.hasAlpha();
+        mRotateBitmap = new RotateBitmap(next.preview, mExifRotation);
+        mMetrics.bitmapAllocated(next.preview);
+
+        mSaving = false;
+        mImageView.setLocked(false);
+        mSession.prefetchNext(this, getPreviewCacheSize());
+        startCrop();
+    }
+
+    private void skipSessionImage() {
+        if (mSaving) return;
+        mSaving = true;
+        mImageView.setLocked(true);
+        startSessionJob(false);
+    }
+
+    private void returnSessionOutputs() {
+        setResult(RESULT_OK, outputsResult(mSession.getSaved(), mSession.getFailed(),
+                mSession.getError()));
+        finish();
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (mSession == null) {
+            super.onBackPressed();
+            return;
+        }
+        if (mSaving) return;
+        // ends the session early, with the outputs saved so far
+        mSaving = true;
+        mImageView.setLocked(true);
+        final CropSession session = mSession;
+        session.begin();
+        Util.startBackgroundJob(this, null,
+                getResources().getString(R.string.savingImage),
+                new Runnable() {
+                    public void run() {
+                        try {
+                            session.awaitSave();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        session.postDone();
+                    }
+                }, mHandler);
+    }
+
+    /**
+     * Returns the pixels through a file descriptor (see CropResult) rather
+     * than a Parcelable bitmap, which doesn't fit through Binder when large.
+     */
+    private void returnThroughFile(Bitmap croppedImage) {
+        try {
+            Uri uri = CropResult.write(this, croppedImage);
+            setResult(RESULT_OK, withMetrics(new Intent()
+                    .setAction("inline-data")
+                    .setData(uri)
+                    .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)));
+        } catch (IOException e) {
+            Log.e(TAG, "error writing result: " + e.getMessage(), e);
+            setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
+        }
+
+        final Bitmap b = croppedImage;
+        mHandler.post(new Runnable() {
+            public void run() {
+                mImageView.clear();
+                mMetrics.bitmapReleased(b);
+                b.recycle();
+            }
+        });
+        finish();
+    }
+
+    // Crops every region from one decode and saves each to its own output.
+    private void saveRegions() {
+        final Bitmap[] crops = cropRegions(mRegions);
+        if (crops == null) {
+            return;
+        }
+
+        Util.startBackgroundJob(this, null,
+                getResources().getString(R.string.savingImage),
+                new Runnable() {
+                    public void run() {
+                        saveRegionOutputs(crops);
+                    }
+                }, mHandler);
+    }
+
+    // Decodes the crop once at the largest size and derives the others from it.
+    private void saveLadder() {
+        final int largest = mLadder.getLargestSize();
+        MultiRegionCrop.Region region =
+                new MultiRegionCrop.Region(mAspectX, mAspectY, largest, largest, null);
+        region.crop = mCrop.getCropRect();
+        Bitmap[] crops = cropRegions(Collections.singletonList(region));
+        if (crops == null) {
+            return;
+        }
+
+        final Bitmap top = crops[0];
+        Util.startBackgroundJob(this, null,
+                getResources().getString(R.string.savingImage),
+                new Runnable() {
+                    public void run() {
+                        final Bitmap[] levels = mLadder.build(top, mMetrics);
+                        ArrayList<Uri> outputs = new ArrayList<Uri>(levels.length);
+                        IOException error = null;
+                        try {
+                            mLadder.save(getContentResolver(), levels, mEncoder, mMetrics,
+                                    outputs);
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                        setResult(RESULT_OK, outputsResult(outputs,
+                                getFailed(mLadder.outputs, outputs), error));
+
+                        mHandler.post(new Runnable() {
+                            public void run() {
+                                for (Bitmap level : levels) {
+                                    mMetrics.bitmapReleased(level);
+                                    level.recycle();
+                                }
+                                mMetrics.bitmapReleased(top);
+                                top.recycle();
+                            }
+                        });
+                        finish();
+                    }
+                }, mHandler);
+    }
+
+    /**
+     * Deferred crop: hands back where to crop instead of cropping, so the
+     * full resolution work can happen elsewhere (e.g. on a server). Skips the
+     * region decode and the encode.
+     *
+     * The result holds "crop-rect", the crop in the coordinates of the stored
+     * (unrotated) source image, "exif-rotation", "source-width"/"source-height"
+     * of the stored image, "aspect-ratio" of the crop as displayed, and an
+     * upright "preview" Bitmap no larger than "preview-size".
+     */
+    private void returnGeometry() {
+        final Rect crop = mCrop.getCropRect();
+        final int[] sourceSize = getSourceSize();
+        final Rect sourceRect = toSourceRect(crop, sourceSize);
+
+        MultiRegionCrop.Region region = new MultiRegionCrop.Region(0, 0,
+                mGeometryPreviewSize, mGeometryPreviewSize, null);
+        region.crop = crop;
+        Bitmap preview = MultiRegionCrop.crop(mRotateBitmap, Collections.singletonList(region),
+                getOutputConfig(null, mGeometryPreviewSize, mGeometryPreviewSize), mMetrics)[0];
+
+        setResult(RESULT_OK, withMetrics(new Intent()
+                .setAction("crop-geometry")
+                .setData(mSourceUri)
+                .putExtra("crop-rect", sourceRect)
+                .putExtra("exif-rotation", mExifRotation)
+                .putExtra("source-width", sourceSize[0])
+                .putExtra("source-height", sourceSize[1])
+                .putExtra("aspect-ratio", (float) crop.width() / crop.height())
+                .putExtra("preview", preview)));
+        finish();
+    }
+
+    /**
+     * Records the crop and returns a Uri which encodes it when first opened
+     * (see LazyCropOutput), so nothing is decoded or encoded here.
+     */
+    private void returnLazyOutput() {
+        if (mInMemorySource) {
+            // there is nothing to decode later
+            setResult(RESULT_OK, withMetrics(new Intent().putExtra("error",
+                    new IllegalArgumentException("lazy-output needs an encoded source"))));
+            finish();
+            return;
+        }
+        final int[] sourceSize = getSourceSize();
+        final Rect sourceRect = toSourceRect(mCrop.getCropRect(), sourceSize);
+        final int[] outSize = getUprightOutputSize(sourceRect);
+
+        try {
+            Uri uri = new LazyCropOutput(mSourceUri, sourceRect, mExifRotation,
+                    outSize[0], outSize[1], mEncoder,
+                    getOutputConfig(mEncoder.format, outSize[0], outSize[1])).record(this);
+            setResult(RESULT_OK, withMetrics(new Intent()
+                    .setAction("lazy-output")
+                    .setData(uri)
+                    .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)));
+        } catch (IOException e) {
+            Log.e(TAG, "error recording crop: " + e.getMessage(), e);
+            setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
+        }
+        finish();
+    }
+
+    /**
+     * Decodes and encodes the crop in the crop process (see CropService), so
+     * the full resolution pixels never enter this heap and an out of memory
+     * error there only fails this crop.
+     */
+    private void saveInCropProcess() {
+        final Rect sourceRect = toSourceRect(mCrop.getCropRect(), getSourceSize());
+        final int[] outSize = getUprightOutputSize(sourceRect);
+        final Bitmap.Config config = getOutputConfig(getOutputFormat(), outSize[0], outSize[1]);
+        final Bundle options = getIntent().getExtras();
+
+        // release memory now
+        clearImageView();
+        mImageView.mHighlightViews.clear();
+
+        Util.startBackgroundJob(this, null,
+                getResources().getString(R.string.savingImage),
+                new Runnable() {
+                    public void run() {
+                        CropProcess process = new CropProcess(CropImageActivity.this);
+                        try {
+                            mMetrics.begin(CropSessionMetrics.STAGE_ENCODE);
+                            long bytes = process.crop(mSourceUri, sourceRect, mExifRotation,
+                                    outSize[0], outSize[1], config, mSaveUri, options);
+                            mMetrics.end(CropSessionMetrics.STAGE_ENCODE);
+
+                            Bundle extras = new Bundle();
+                            extras.putLong("output-bytes", bytes);
+                            setResult(RESULT_OK, withMetrics(new Intent(mSaveUri.toString())
+                                    .putExtras(extras)));
+                        } catch (IOException e) {
+                            Log.e(TAG, "Cannot write file: " + mSaveUri, e);
+                            setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
+                        } catch (IllegalArgumentException e) {
+                            setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
+                        } finally {
+                            process.release();
+                        }
+                        finish();
+                    }
+                }, mHandler);
+    }
+
+    // Output size of a crop of the stored source, once rotated upright.
+    private int[] getUprightOutputSize(Rect sourceRect) {
+        int[] outSize = new int[2];
+        if (mExifRotation % 180 == 0) {
+            CropGeometry.fitOutputSize(sourceRect.width(), sourceRect.height(), mMaxX, mMaxY, outSize);
+        } else {
+            CropGeometry.fitOutputSize(sourceRect.height(), sourceRect.width(), mMaxX, mMaxY, outSize);
+        }
+        return outSize;
+    }
+
+    // Dimensions of the stored source image, falling back to the preview's.
+    private int[] getSourceSize() {
+        if (mSourceSize != null) return mSourceSize;
+        BitmapFactory.Options bounds = PreviewLoader.decodeBounds(getContentResolver(), mSourceUri,
+                getSourceFormat());
+        if (bounds != null) {
+            mSourceSize = new int[] { bounds.outWidth, bounds.outHeight };
+        } else {
+            Bitmap preview = mRotateBitmap.getBitmap();
+            mSourceSize = new int[] { preview.getWidth(), preview.getHeight() };
+        }
+        return mSourceSize;
+    }
+
+    // The preview as stored (unrotated), {width, height}.
+    private int[] getPreviewSize() {
+        Bitmap preview = mRotateBitmap.getBitmap();
+        return new int[] { preview.getWidth(), preview.getHeight() };
+    }
+
+    // Source pixels per preview pixel; cached previews may be subsampled.
+    private float getSourceScale() {
+        return (float) getSourceSize()[0] / mRotateBitmap.getBitmap().getWidth();
+    }
+
+    /**
+     * Config of an output of the given size, of the saved format or of the
+     * returned pixels (format null).
+     */
+    private Bitmap.Config getOutputConfig(Bitmap.CompressFormat format, int width, int height) {
+        if (mOutputConfig != null) return mOutputConfig;
+        return PixelFormatPolicy.forOutput(format, mSourceHasAlpha, width, height,
+                Runtime.getRuntime().maxMemory());
+    }
+
+    // The format the crop is saved in, null if it is returned as pixels.
+    private Bitmap.CompressFormat getOutputFormat() {
+        Bundle extras = getIntent().getExtras();
+        if (extras != null && extras.getBoolean("return-data")) return null;
+        return mEncoder.format;
+    }
+
+    /**
+     * Maps a crop rectangle on the (possibly subsampled) preview to the
+     * coordinates of the stored, unrotated source image.
+     */
+    private Rect toSourceRect(Rect crop, int[] sourceSize) {
+        return toSourceRect(crop, getPreviewSize(), sourceSize);
+    }
+
+    private Rect toSourceRect(Rect crop, int[] previewSize, int[] sourceSize) {
+        final int previewWidth = previewSize[0];
+        final int previewHeight = previewSize[1];
+
+        float[] r = { crop.left, crop.top, crop.right, crop.bottom };
+        CropGeometry.unrotate(r, mExifRotation, previewWidth, previewHeight);
+        float scaleX = (float) sourceSize[0] / previewWidth;
+        float scaleY = (float) sourceSize[1] / previewHeight;
+        return new Rect(
+                Math.round(r[0] * scaleX), Math.round(r[1] * scaleY),
+                Math.round(r[2] * scaleX), Math.round(r[3] * scaleY));
+    }
+
+    /**
+     * Crops the given regions through one decoder session (or from the preview
+     * if the source can't be region decoded). Returns null, after finishing with an error
+     * result, if the crop failed.
+     */
+    private Bitmap[] cropRegions(List<MultiRegionCrop.Region> regions) {
+        for (MultiRegionCrop.Region region : regions) {
+            if (region.highlightView != null) {
+                region.crop = region.highlightView.getCropRect();
+            }
+        }
+        final boolean inMemory = isInMemoryCrop() && mRotateBitmap != null;
+        // sized for what is decoded: the union of the regions at their sample size
+        final int[] size = MultiRegionCrop.getAllocationSize(regions,
+                inMemory ? 0 : getSourceScale());
+        final int[] previewSize = getPreviewSize();
+        final Bitmap.Config config = getOutputConfig(getOutputFormat(), size[0], size[1]);
+        Bitmap[] crops;
+        try {
+            if (inMemory) {
+                crops = MultiRegionCrop.crop(mRotateBitmap, regions, config, mMetrics);
+                clearImageView();
+            } else {
+                clearImageView();
+                crops = MultiRegionCrop.decode(getContentResolver(), mSourceUri,
+                        mExifRotation, regions, previewSize, config, mMetrics);
+            }
+        } catch (IllegalArgumentException e) {
+            setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", e)));
+            finish();
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "error cropping picture: " + e.getMessage(), e);
+            finish();
+            return null;
+        }
+        mImageView.mHighlightViews.clear();
+        return crops;
+    }
+
+    private void saveRegionOutputs(Bitmap[] crops) {
+        ArrayList<Uri> requested = new ArrayList<Uri>(crops.length);
+        ArrayList<Uri> outputs = new ArrayList<Uri>(crops.length);
+        IOException error = null;
+        for (int i = 0; i < crops.length; i++) {
+            Uri output = mRegions.get(i).output;
+            requested.add(output);
+            if (output == null) continue;
+
+            try {
+                mMetrics.begin(CropSessionMetrics.STAGE_ENCODE);
+                OutputWriter.write(getContentResolver(), output, crops[i], mEncoder);
+                mMetrics.end(CropSessionMetrics.STAGE_ENCODE);
+                outputs.add(output);
+            } catch (IOException ex) {
+                Log.e(TAG, "Cannot write file: " + output, ex);
+                if (error == null) error = ex;
+            }
+        }
+        setResult(RESULT_OK, outputsResult(outputs, getFailed(requested, outputs), error));
+
+        final Bitmap[] b = crops;
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (Bitmap crop : b) {
+                    mMetrics.bitmapReleased(crop);
+                    crop.recycle();
+                }
+            }
+        });
+
+        finish();
+    }
+
+    /**
+     * The result of a save with several outputs: "outputs" holds the Uris
+     * which were written. If any failed they are listed in "failed-outputs"
+     * and "error" holds the first failure.
+     */
+    private Intent outputsResult(ArrayList<Uri> written, ArrayList<Uri> failed,
+                                 Exception error) {
+        Intent result = new Intent().putParcelableArrayListExtra("outputs", written);
+        if (!failed.isEmpty()) {
+            result.putParcelableArrayListExtra("failed-outputs", failed);
+            result.putExtra("error", error != null
+                    ? error : new IOException("cannot write " + failed));
+        }
+        return withMetrics(result);
+    }
+
+    // The requested outputs which weren't written.
+    private static ArrayList<Uri> getFailed(List<Uri> requested, List<Uri> written) {
+        ArrayList<Uri> failed = new ArrayList<Uri>();
+        for (Uri output : requested) {
+            if (output != null && !written.contains(output)) failed.add(output);
+        }
+        return failed;
+    }
+
 	/**
      * @param croppedImage the cropped image
      * @param rect rectangle to crop
@@ -307,32 +1116,27 @@ public class CropImageActivity extends MonitoredActivity {
      */
     @TargetApi(10)
     private Bitmap decodeRegionCrop(Bitmap croppedImage, Rect rect) {
+        final int[] previewSize = getPreviewSize();
         // release memory now
         clearImageView();
 
-        InputStream is = null;
+        CropDecoder.RegionDecoder decoder = null;
         try {
-            is = getContentResolver().openInputStream(mSourceUri);
-            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
+            decoder = CropDecoders.newRegionDecoder(getContentResolver(), mSourceUri);
             final int width  = decoder.getWidth();
             final int height = decoder.getHeight();
 
-            if (mExifRotation != 0) {
-
-                // adjust crop area to account for image rotation
-                Matrix matrix = new Matrix();
-                matrix.setRotate(-mExifRotation);
-
-                RectF adjusted = new RectF();
-                matrix.mapRect(adjusted, new RectF(rect));
-
-                // adjust to account for origin at 0,0
-                adjusted.offset(adjusted.left < 0 ? width : 0, adjusted.top < 0 ? height : 0);
-                rect = new Rect((int) adjusted.left, (int) adjusted.top, (int) adjusted.right, (int) adjusted.bottom);
-            }
+            // adjust crop area to account for image rotation and a subsampled preview
+            rect = toSourceRect(rect, previewSize, new int[] { width, height });
 
             try {
-                croppedImage = decoder.decodeRegion(rect, new BitmapFactory.Options());
+                mMetrics.begin(CropSessionMetrics.STAGE_REGION_DECODE);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = getOutputConfig(getOutputFormat(),
+                        rect.width(), rect.height());
+                croppedImage = decoder.decodeRegion(rect, options);
+                mMetrics.end(CropSessionMetrics.STAGE_REGION_DECODE);
+                mMetrics.bitmapAllocated(croppedImage);
 
             } catch (IllegalArgumentException e) {
                 // rethrow with some extra information
@@ -344,7 +1148,9 @@ public class CropImageActivity extends MonitoredActivity {
             Log.e(TAG, "error cropping picture: " + e.getMessage(), e);
             finish();
         } finally {
-            Util.closeSilently(is);
+            if (decoder != null) {
+                decoder.recycle();
+            }
         }
         return croppedImage;
     }
@@ -358,7 +1164,10 @@ public class CropImageActivity extends MonitoredActivity {
         System.gc();
 
         try {
-            croppedImage = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.RGB_565);
+            mMetrics.begin(CropSessionMetrics.STAGE_RESAMPLE);
+            croppedImage = Bitmap.createBitmap(outWidth, outHeight,
+                    getOutputConfig(getOutputFormat(), outWidth, outHeight));
+            mMetrics.bitmapAllocated(croppedImage);
 
             Canvas canvas = new Canvas(croppedImage);
             RectF dstRect = new RectF(0, 0, width, height);
@@ -367,6 +1176,7 @@ public class CropImageActivity extends MonitoredActivity {
             m.setRectToRect(new RectF(r), dstRect, Matrix.ScaleToFit.FILL);
             m.preConcat(rotateBitmap.getRotateMatrix());
             canvas.drawBitmap(rotateBitmap.getBitmap(), m, null);
+            mMetrics.end(CropSessionMetrics.STAGE_RESAMPLE);
 
         } catch (OutOfMemoryError e){
             Log.e(TAG, "error cropping picture: " + e.getMessage(), e);
@@ -381,6 +1191,7 @@ public class CropImageActivity extends MonitoredActivity {
     private void clearImageView() {
         mImageView.clear();
         if (mRotateBitmap != null) {
+            mMetrics.bitmapReleased(mRotateBitmap.getBitmap());
             mRotateBitmap.recycle();
         }
         System.gc();
@@ -388,52 +1199,157 @@ public class CropImageActivity extends MonitoredActivity {
 
     private void saveOutput(Bitmap croppedImage) {
         if (mSaveUri != null) {
-            OutputStream outputStream = null;
+            long bytes;
             try {
-                outputStream = getContentResolver().openOutputStream(mSaveUri);
-                if (outputStream != null)
-                {
-                    croppedImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
+                mMetrics.begin(CropSessionMetrics.STAGE_ENCODE);
+                if (!isInMemoryCrop() && !mEncoder.isJpeg() && mExifRotation != 0) {
+                    // only JPEG carries the EXIF rotation, rotate the pixels instead
+                    Bitmap upright = rotate(croppedImage, mExifRotation);
+                    try {
+                        bytes = OutputWriter.write(getContentResolver(), mSaveUri, upright, mEncoder);
+                    } finally {
+                        upright.recycle();
+                    }
+                } else {
+                    // in memory crop negates the rotation; otherwise the tag goes into
+                    // the stream, the output isn't touched again once it's in place
+                    int exifRotation = isInMemoryCrop() ? 0 : mExifRotation;
+                    bytes = OutputWriter.write(getContentResolver(), mSaveUri, croppedImage,
+                            mEncoder, exifRotation);
                 }
+                mMetrics.end(CropSessionMetrics.STAGE_ENCODE);
 
             } catch (IOException ex) {
-                // TODO: report error to caller
-                Log.e(TAG, "Cannot open file: " + mSaveUri, ex);
-            } finally {
-                Util.closeSilently(outputStream);
-            }
-
-            if (!IN_MEMORY_CROP){
-                // in memory crop negates the rotation
-                copyExifRotation(
-                        getFromMediaUri(getContentResolver(), mSourceUri),
-                        getFromMediaUri(getContentResolver(), mSaveUri)
-                );
+                Log.e(TAG, "Cannot write file: " + mSaveUri, ex);
+                setResult(RESULT_OK, withMetrics(new Intent().putExtra("error", ex)));
+                recycleLater(croppedImage);
+                finish();
+                return;
             }
 
             Bundle extras = new Bundle();
-            setResult(RESULT_OK, new Intent(mSaveUri.toString())
-                    .putExtras(extras));
+            extras.putLong("output-bytes", bytes);
+            setResult(RESULT_OK, withMetrics(new Intent(mSaveUri.toString())
+                    .putExtras(extras)));
         }
 
-        final Bitmap b = croppedImage;
+        recycleLater(croppedImage);
+        finish();
+    }
+
+    private void recycleLater(final Bitmap b) {
         mHandler.post(new Runnable() {
             public void run()
             {	
                 mImageView.clear();
+                mMetrics.bitmapReleased(b);
                 b.recycle();
             }
         });
+    }
 
-        finish();
+    // Crop from the preview: no region decoder for the source, or no encoded source.
+    private boolean isInMemoryCrop() {
+        return mInMemorySource || !CropDecoders.canDecodeRegion(getSourceFormat());
+    }
+
+    // Sniffed format of the source, null if unknown.
+    private String getSourceFormat() {
+        return mPreviewLoader == null ? null : mPreviewLoader.format;
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int rotation) {
+        Matrix m = new Matrix();
+        m.setRotate(rotation);
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), m, true);
+    }
+
+    @Override
+    public void finish() {
+        if (!mMetricsReported) {
+            mMetricsReported = true;
+            mMetrics.finish();
+        }
+        super.finish();
+    }
+
+    private Intent withMetrics(Intent result) {
+        if (mReturnMetrics) {
+            result.putExtra("metrics", mMetrics.toBundle());
+        }
+        return result;
+    }
+
+    public CropSessionMetrics getSessionMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        boolean hasPreview = mRotateBitmap != null && mRotateBitmap.getBitmap() != null;
+        // a save in progress owns (and recycles) the preview, a session is
+        // kept in any case: its jobs report to the next instance
+        if (mSession == null && (mSaving || !hasPreview)) {
+            return null;
+        }
+        RetainedState state = new RetainedState();
+        state.session = mSession;
+        if (hasPreview) {
+            // a session job is done with the shown preview before it reports
+            state.rotateBitmap = mRotateBitmap;
+            state.exifRotation = mExifRotation;
+            state.sourceSize = mSourceSize;
+            state.previewLoader = mPreviewLoader;
+            state.inMemorySource = mInMemorySource;
+            mRetained = true;
+        }
+        return state;
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mSession != null) {
+            // the sources are in the intent, where the user got to is not
+            mSession.saveState(outState);
+        }
+        saveCropState();
+        if (mSavedCropRects == null) return;
+
+        outState.putParcelableArrayList("crop-rects", mSavedCropRects);
+        outState.putInt("crop-focus", mSavedFocus);
+        outState.putFloat("crop-scale", mSavedScale);
+    }
+
+    // Copies the highlight views into the fields makeDefault() restores from.
+    private void saveCropState() {
+        ArrayList<HighlightView> views = mImageView.mHighlightViews;
+        if (views.isEmpty() || mRotateBitmap == null) return;
+
+        // relative to the preview, which may come back at another subsampling
+        float width = mRotateBitmap.getWidth(), height = mRotateBitmap.getHeight();
+        ArrayList<RectF> rects = new ArrayList<RectF>(views.size());
+        for (HighlightView hv : views) {
+            RectF r = hv.mCropRect;
+            rects.add(new RectF(r.left / width, r.top / height, r.right / width, r.bottom / height));
+        }
+        mSavedCropRects = rects;
+        mSavedFocus = Math.max(0, views.indexOf(mCrop));
+        mSavedScale = mImageView.getScale();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mRotateBitmap != null) {
+        if (mRotateBitmap != null && !mRetained) {
             mRotateBitmap.recycle();
         }
+        if (mSession != null) {
+            mSession.detach(mSessionHost);
+            if (isFinishing()) {
+                mSession.close();
+            }
+        }
     }
 
     public boolean isSaving() {
@@ -1,20 +1,73 @@
 package com.soundcloud.android.cropimage;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.view.Display;
 import android.view.MotionEvent;
-
+import android.view.WindowManager;
+
+/**
+ * The crop view of CropImageActivity. It can also be embedded directly in a
+ * layout: {@link #setImage(Bitmap, int, int, int)} shows a bitmap the app
+ * already has, {@link #crop(Bitmap, Rect, int, int, int)} or
+ * {@link #crop(CropDecoder.RegionDecoder, Bitmap, Rect, int, int, int)} produce
+ * the crop and {@link CropSaver} encodes it.
+ */
 public class CropImageView extends ImageViewTouchBase {
     ArrayList<HighlightView> mHighlightViews = new ArrayList<HighlightView>();
     HighlightView mMotionHighlightView;
     float mLastX, mLastY;
     int mMotionEdge;
 
-    Context mContext;
+    // Ignores touches, e.g. while the crop is saved.
+    private boolean mLocked;
+
+    // The image passed to setImage(), null inside CropImageActivity.
+    private RotateBitmap mSource;
+
+    // Move events are not applied one by one: all samples (including the
+    // batched historical ones) are folded into a single geometry update which
+    // runs once per frame. See queueMotion() and applyPendingMotion().
+    private boolean mMotionPending;
+    private float mPendingX, mPendingY;
+    private float mSampleX, mSampleY;
+    private long mSampleTime;
+    private float mVelocityX, mVelocityY; // pixels per ms
+    private boolean mPredictMotion;
+    private float mFramePeriod;
+
+    // Uptime of the oldest touch sample which is not yet on screen.
+    private long mPendingTouchTime;
+    private long mLastTouchLatency = -1;
+    private OnTouchLatencyListener mTouchLatencyListener;
+
+    // Frame statistics, only collected while a listener is installed.
+    private FrameMetrics mFrameMetrics;
+    private FrameMetrics.Listener mFrameMetricsListener;
+    private boolean mFrameMetricsTracing;
+    // Uptime of the first gesture/animation step not yet drawn.
+    private long mStepTime;
+
+    private final Runnable mApplyMotion = new Runnable() {
+        public void run() {
+            applyPendingMotion(mPredictMotion);
+        }
+    };
+
+    // Receives the time between a touch sample and the frame showing it.
+    public interface OnTouchLatencyListener {
+        public void onTouchLatency(long latencyMs);
+    }
 
     public CropImageView(Context context) {
         super(context);
@@ -28,6 +81,211 @@ public class CropImageView extends ImageViewTouchBase {
         super(context, attrs, defStyle);
     }
 
+    public void setLocked(boolean locked) {
+        mLocked = locked;
+    }
+
+    /**
+     * Shows bitmap, turned clockwise by rotation degrees, with one crop
+     * rectangle of the aspect ratio aspectX:aspectY (0 for any). The bitmap
+     * stays owned by the caller and must not be recycled while shown.
+     */
+    public void setImage(Bitmap bitmap, int rotation, int aspectX, int aspectY) {
+        mSource = new RotateBitmap(bitmap, rotation);
+        mHighlightViews.clear();
+        setImageRotateBitmapResetBase(mSource, true);
+        HighlightView hv = makeHighlightView(mSource, aspectX, aspectY, null);
+        hv.setFocus(true);
+        add(hv);
+    }
+
+    /**
+     * @return the crop in the coordinates of the (unrotated) bitmap passed to
+     *         setImage(), or null if there is none. Call on the UI thread,
+     *         and pass it to one of the static crop() methods off it.
+     */
+    public Rect getCropRect() {
+        HighlightView hv = getFocused();
+        if (hv == null || mSource == null) return null;
+        Rect crop = hv.getCropRect();
+        float[] r = { crop.left, crop.top, crop.right, crop.bottom };
+        Bitmap bitmap = mSource.getBitmap();
+        CropGeometry.unrotate(r, mSource.getRotation(), bitmap.getWidth(), bitmap.getHeight());
+        return new Rect(Math.round(r[0]), Math.round(r[1]), Math.round(r[2]), Math.round(r[3]));
+    }
+
+    /**
+     * @return the rotation passed to setImage(), 0 if there is no image. Call
+     *         on the UI thread.
+     */
+    public int getImageRotation() {
+        return mSource == null ? 0 : mSource.getRotation();
+    }
+
+    /**
+     * Cuts rect from bitmap, upright and scaled down to fit into maxX x maxY
+     * (0 for no limit). Doesn't touch the view, so it can run off the UI
+     * thread with the rect and rotation read on it.
+     *
+     * @param rect     from {@link #getCropRect()}
+     * @param rotation from {@link #getImageRotation()}
+     * @return a new bitmap owned by the caller, or null if rect is null
+     */
+    public static Bitmap crop(Bitmap bitmap, Rect rect, int rotation, int maxX, int maxY) {
+        if (rect == null) return null;
+        int[] outSize = fitUpright(rect, rotation, maxX, maxY);
+        return MultiRegionCrop.extract(bitmap, new RectF(rect), rotation, outSize,
+                getOutputConfig(bitmap, outSize), new CropSessionMetrics());
+    }
+
+    /**
+     * Decodes rect from the full resolution image of which preview (the
+     * bitmap passed to setImage()) is a possibly subsampled version, upright
+     * and scaled down to fit into maxX x maxY (0 for no limit). Only the
+     * pixels of the crop are decoded. The decoder stays open.
+     *
+     * @param rect     from {@link #getCropRect()}, in preview coordinates
+     * @param rotation from {@link #getImageRotation()}
+     * @return a new bitmap owned by the caller, or null if rect is null
+     * @throws IllegalArgumentException if the crop is outside of the image
+     */
+    @TargetApi(10)
+    public static Bitmap crop(BitmapRegionDecoder decoder, Bitmap preview, Rect rect,
+                              int rotation, int maxX, int maxY) throws IOException {
+        return crop(CropDecoders.wrap(decoder), preview, rect, rotation, maxX, maxY);
+    }
+
+    /**
+     * Like {@link #crop(BitmapRegionDecoder, Bitmap, Rect, int, int, int)},
+     * through a region decoder of a {@link CropDecoder}.
+     */
+    public static Bitmap crop(CropDecoder.RegionDecoder decoder, Bitmap preview, Rect rect,
+                              int rotation, int maxX, int maxY) throws IOException {
+        if (rect == null) return null;
+        float scaleX = (float) decoder.getWidth() / preview.getWidth();
+        float scaleY = (float) decoder.getHeight() / preview.getHeight();
+        Rect full = new Rect(
+                Math.round(rect.left * scaleX), Math.round(rect.top * scaleY),
+                Math.round(rect.right * scaleX), Math.round(rect.bottom * scaleY));
+        int[] outSize = fitUpright(full, rotation, maxX, maxY);
+        return MultiRegionCrop.decodeCrop(decoder, full, rotation, outSize,
+                getOutputConfig(preview, outSize), new CropSessionMetrics());
+    }
+
+    // Output size of the unrotated rect once turned upright.
+    private static int[] fitUpright(Rect rect, int rotation, int maxX, int maxY) {
+        int[] outSize = new int[2];
+        if (rotation % 180 == 0) {
+            CropGeometry.fitOutputSize(rect.width(), rect.height(), maxX, maxY, outSize);
+        } else {
+            CropGeometry.fitOutputSize(rect.height(), rect.width(), maxX, maxY, outSize);
+        }
+        return outSize;
+    }
+
+    // Returned pixels: alpha is kept if the source has any.
+    private static Bitmap.Config getOutputConfig(Bitmap source, int[] outSize) {
+        return PixelFormatPolicy.forOutput(null, source.hasAlpha(), outSize[0], outSize[1],
+                Runtime.getRuntime().maxMemory());
+    }
+
+    private HighlightView getFocused() {
+        for (HighlightView hv : mHighlightViews) {
+            if (hv.hasFocus()) return hv;
+        }
+        return mHighlightViews.isEmpty() ? null : mHighlightViews.get(0);
+    }
+
+    /**
+     * A crop rectangle over bitmap, restored from saved (image space) or
+     * about 4/5 of the shorter edge and centered.
+     */
+    HighlightView makeHighlightView(RotateBitmap bitmap, int aspectX, int aspectY, RectF saved) {
+        HighlightView hv = new HighlightView(this);
+        final int width  = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+
+        Rect imageRect = new Rect(0, 0, width, height);
+        if (saved != null) {
+            hv.setup(getUnrotatedMatrix(), imageRect, new RectF(saved), false,
+                    aspectX != 0 && aspectY != 0);
+            return hv;
+        }
+
+        // make the default size about 4/5 of the width or height
+        int cropWidth = Math.min(width, height) * 4 / 5;
+        //noinspection SuspiciousNameCombination
+        int cropHeight = cropWidth;
+
+        if (aspectX != 0 && aspectY != 0) {
+            if (aspectX > aspectY) {
+                cropHeight = cropWidth * aspectY / aspectX;
+            } else {
+                cropWidth = cropHeight * aspectX / aspectY;
+            }
+        }
+
+        int x = (width - cropWidth) / 2;
+        int y = (height - cropHeight) / 2;
+
+        RectF cropRect = new RectF(x, y, x + cropWidth, y + cropHeight);
+        hv.setup(getUnrotatedMatrix(), imageRect, cropRect, false,
+                aspectX != 0 && aspectY != 0);
+        return hv;
+    }
+
+    // Extrapolate the dragged edge to the next frame to hide input latency.
+    // Off by default: the edge then follows the last touch sample exactly.
+    public void setMotionPrediction(boolean enabled) {
+        mPredictMotion = enabled;
+    }
+
+    public void setOnTouchLatencyListener(OnTouchLatencyListener listener) {
+        mTouchLatencyListener = listener;
+    }
+
+    // Touch-to-frame latency of the last drawn drag, or -1 if unknown.
+    public long getLastTouchLatency() {
+        return mLastTouchLatency;
+    }
+
+    /**
+     * Starts collecting frame metrics, delivered to the listener after every
+     * gesture or zoom animation. Pass null to stop.
+     */
+    public void setFrameMetricsListener(FrameMetrics.Listener listener) {
+        if (listener != null && mFrameMetrics == null) {
+            mFrameMetrics = new FrameMetrics();
+            FrameMetrics.startAllocCounting();
+        } else if (listener == null && mFrameMetrics != null) {
+            FrameMetrics.stopAllocCounting();
+            mFrameMetrics = null;
+        }
+        mFrameMetricsListener = listener;
+    }
+
+    // Emit android.os.Trace sections for onDraw (API 18+).
+    public void setFrameMetricsTracing(boolean enabled) {
+        mFrameMetricsTracing = enabled;
+    }
+
+    @Override
+    protected void markInteraction() {
+        if (mStepTime == 0) {
+            mStepTime = SystemClock.uptimeMillis();
+        }
+        super.markInteraction();
+    }
+
+    @Override
+    protected void onInteractionEnd() {
+        mStepTime = 0;
+        if (mFrameMetrics != null && mFrameMetrics.getFrameCount() > 0) {
+            mFrameMetricsListener.onFrameMetrics(mFrameMetrics);
+            mFrameMetrics.reset();
+        }
+    }
+
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
@@ -82,29 +340,46 @@ public class CropImageView extends ImageViewTouchBase {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        CropImageActivity cropImageActivity = (CropImageActivity) mContext;
-        if (cropImageActivity.isSaving()) {
+        if (mLocked) {
             return false;
         }
 
         switch (event.getAction()) {
         case MotionEvent.ACTION_DOWN:
+            // Overlapping regions: the focused one wins.
+            HighlightView hit = null;
+            int hitEdge = HighlightView.GROW_NONE;
             for (HighlightView hv : mHighlightViews) {
                 int edge = hv.getHit(event.getX(), event.getY());
-                if (edge != HighlightView.GROW_NONE) {
-                    mMotionEdge = edge;
-                    mMotionHighlightView = hv;
-                    mLastX = event.getX();
-                    mLastY = event.getY();
-                    mMotionHighlightView
-                            .setMode((edge == HighlightView.MOVE) ? HighlightView.ModifyMode.Move
-                                    : HighlightView.ModifyMode.Grow);
-                    break;
+                if (edge != HighlightView.GROW_NONE && (hit == null || hv.hasFocus())) {
+                    hit = hv;
+                    hitEdge = edge;
                 }
             }
+            if (hit != null) {
+                if (mHighlightViews.size() > 1) {
+                    setFocus(hit);
+                }
+                mMotionEdge = hitEdge;
+                mMotionHighlightView = hit;
+                mLastX = event.getX();
+                mLastY = event.getY();
+                mSampleX = mLastX;
+                mSampleY = mLastY;
+                mSampleTime = event.getEventTime();
+                mVelocityX = mVelocityY = 0F;
+                mMotionHighlightView
+                        .setMode((hitEdge == HighlightView.MOVE) ? HighlightView.ModifyMode.Move
+                                : HighlightView.ModifyMode.Grow);
+            }
             break;
         case MotionEvent.ACTION_UP:
             if (mMotionHighlightView != null) {
+                // Land exactly where the finger was lifted, undoing any
+                // prediction overshoot.
+                mHandler.removeCallbacks(mApplyMotion);
+                addSample(event.getX(), event.getY(), event.getEventTime());
+                applyPendingMotion(false);
                 centerBasedOnHighlightView(mMotionHighlightView);
                 mMotionHighlightView.setMode(HighlightView.ModifyMode.None);
             }
@@ -112,41 +387,112 @@ public class CropImageView extends ImageViewTouchBase {
             break;
         case MotionEvent.ACTION_MOVE:
             if (mMotionHighlightView != null) {
-                mMotionHighlightView.handleMotion(mMotionEdge, event.getX()
-                        - mLastX, event.getY() - mLastY);
-                mLastX = event.getX();
-                mLastY = event.getY();
-
-                if (true) {
-                    // This section of code is optional. It has some user
-                    // benefit in that moving the crop rectangle against
-                    // the edge of the screen causes scrolling but it means
-                    // that the crop rectangle is no longer fixed under
-                    // the user's finger.
-                    ensureVisible(mMotionHighlightView);
-                }
+                queueMotion(event);
+            } else if (getScale() == 1F) {
+                // if we're not zoomed then there's no point in even allowing
+                // the user to move the image around. This call to center puts
+                // it back to the normalized location.
+                center(true, true);
             }
             break;
         }
 
-        switch (event.getAction()) {
-        case MotionEvent.ACTION_UP:
+        if (event.getAction() == MotionEvent.ACTION_UP) {
             center(true, true);
-            break;
-        case MotionEvent.ACTION_MOVE:
-            // if we're not zoomed then there's no point in even allowing
-            // the user to move the image around. This call to center puts
-            // it back to the normalized location (with false meaning don't
-            // animate).
-            if (getScale() == 1F) {
-                center(true, true);
-            }
-            break;
         }
 
         return true;
     }
 
+    // Records all samples of a move event and schedules a single update for
+    // them, so a burst of events costs one handleMotion/ensureVisible/center.
+    private void queueMotion(MotionEvent event) {
+        final int historySize = event.getHistorySize();
+        if (!mMotionPending) {
+            mPendingTouchTime = historySize > 0
+                    ? event.getHistoricalEventTime(0) : event.getEventTime();
+        }
+        for (int i = 0; i < historySize; i++) {
+            addSample(event.getHistoricalX(i), event.getHistoricalY(i),
+                    event.getHistoricalEventTime(i));
+        }
+        addSample(event.getX(), event.getY(), event.getEventTime());
+
+        if (!mMotionPending) {
+            mMotionPending = true;
+            mHandler.post(mApplyMotion);
+        }
+    }
+
+    private void addSample(float x, float y, long time) {
+        long dt = time - mSampleTime;
+        if (dt > 0) {
+            // Smooth the velocity a little so a single noisy sample
+            // doesn't throw the prediction off.
+            mVelocityX = .5F * mVelocityX + .5F * (x - mSampleX) / dt;
+            mVelocityY = .5F * mVelocityY + .5F * (y - mSampleY) / dt;
+        }
+        mSampleX = x;
+        mSampleY = y;
+        mSampleTime = time;
+        mPendingX = x;
+        mPendingY = y;
+    }
+
+    private void applyPendingMotion(boolean predict) {
+        mMotionPending = false;
+        if (mMotionHighlightView == null) {
+            return;
+        }
+
+        markInteraction();
+
+        float x = mPendingX, y = mPendingY;
+        if (predict) {
+            // Extrapolate to the moment the next frame hits the screen, but
+            // never more than two frames. The overshoot, if any, is corrected
+            // by the next update because deltas are taken from the position
+            // we actually applied.
+            float period = getFramePeriod();
+            float ahead = Math.min(2 * period,
+                    SystemClock.uptimeMillis() - mSampleTime + period);
+            x += mVelocityX * ahead;
+            y += mVelocityY * ahead;
+        }
+
+        mMotionHighlightView.handleMotion(mMotionEdge, x - mLastX, y - mLastY);
+        mLastX = x;
+        mLastY = y;
+
+        if (true) {
+            // This section of code is optional. It has some user
+            // benefit in that moving the crop rectangle against
+            // the edge of the screen causes scrolling but it means
+            // that the crop rectangle is no longer fixed under
+            // the user's finger.
+            ensureVisible(mMotionHighlightView);
+        }
+
+        // if we're not zoomed then there's no point in even allowing
+        // the user to move the image around. This call to center puts
+        // it back to the normalized location (with false meaning don't
+        // animate).
+        if (getScale() == 1F) {
+            center(true, true);
+        }
+    }
+
+    private float getFramePeriod() {
+        if (mFramePeriod > 0) {
+            return mFramePeriod;
+        }
+        Display display = ((WindowManager) getContext()
+                .getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        float refreshRate = display.getRefreshRate();
+        mFramePeriod = refreshRate > 0 ? 1000F / refreshRate : 16F;
+        return mFramePeriod;
+    }
+
     // Pan the displayed image to make sure the cropping rectangle is visible.
     private void ensureVisible(HighlightView hv) {
         Rect r = hv.mDrawRect;
@@ -195,10 +541,54 @@ public class CropImageView extends ImageViewTouchBase {
 
     @Override
     protected void onDraw(Canvas canvas) {
+        final FrameMetrics metrics = mFrameMetrics;
+        long start = 0, overlayStart = 0;
+        int allocCount = 0;
+        if (metrics != null) {
+            if (mFrameMetricsTracing) FrameMetrics.Trace.beginSection("CropImageView.onDraw");
+            allocCount = FrameMetrics.getThreadAllocCount();
+            start = System.nanoTime();
+        }
+
         super.onDraw(canvas);
+
+        if (metrics != null) overlayStart = System.nanoTime();
         for (HighlightView mHighlightView : mHighlightViews) {
             mHighlightView.draw(canvas);
         }
+
+        final long now = SystemClock.uptimeMillis();
+        if (metrics != null) {
+            long end = System.nanoTime();
+            metrics.drawTime.record((end - start) / 1000);
+            metrics.overlayDrawTime.record((end - overlayStart) / 1000);
+            metrics.allocations.record(FrameMetrics.getThreadAllocCount() - allocCount);
+            if (mStepTime != 0) {
+                metrics.onFrame(now - mStepTime, getFramePeriod());
+            }
+            if (mFrameMetricsTracing) FrameMetrics.Trace.endSection();
+        }
+        mStepTime = 0;
+
+        if (mPendingTouchTime != 0 && !mMotionPending) {
+            mLastTouchLatency = now - mPendingTouchTime;
+            mPendingTouchTime = 0;
+            if (metrics != null) {
+                metrics.touchLatency.record(mLastTouchLatency);
+            }
+            if (mTouchLatencyListener != null) {
+                mTouchLatencyListener.onTouchLatency(mLastTouchLatency);
+            }
+        }
+    }
+
+    // With several crop regions, only the touched one is focused (and masks
+    // the image around it).
+    private void setFocus(HighlightView focus) {
+        for (HighlightView hv : mHighlightViews) {
+            hv.setFocus(hv == focus);
+        }
+        invalidate();
     }
 
     public void add(HighlightView hv) {
@@ -0,0 +1,156 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts loading the preview of a source before CropImageActivity is
+ * launched, so the decode overlaps with the activity transition:
+ *
+ * <pre>
+ * CropPrewarm.prewarm(context, uri);
+ * startActivityForResult(new Intent(context, CropImageActivity.class).setData(uri), 0);
+ * </pre>
+ *
+ * The probe (EXIF, dimensions) and the decode run on a background thread
+ * and the result is kept in a single process-wide slot. The activity takes
+ * it over if it is started for the same Uri, waiting for the decode if it is
+ * still running. An unclaimed preview is dropped after {@link #MAX_AGE_MS}
+ * or by the next prewarm.
+ */
+public final class CropPrewarm {
+
+    private static final String TAG = CropPrewarm.class.getSimpleName();
+
+    public static final long MAX_AGE_MS = 10 * 1000;
+
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // guarded by CropPrewarm.class
+    private static Slot sSlot;
+
+    static class Result {
+        final PreviewLoader loader;
+        final Bitmap preview;
+
+        Result(PreviewLoader loader, Bitmap preview) {
+            this.loader = loader;
+            this.preview = preview;
+        }
+    }
+
+    private static class Slot {
+        final Uri source;
+        final Future<Result> future;
+
+        Slot(Uri source, Future<Result> future) {
+            this.source = source;
+            this.future = future;
+        }
+    }
+
+    private CropPrewarm() {
+    }
+
+    /**
+     * Starts loading the preview of source, replacing an earlier prewarm.
+     * The preview cache is used with its default size.
+     */
+    public static void prewarm(Context context, final Uri source) {
+        final Context app = context.getApplicationContext();
+        final Future<Result> future = sExecutor.submit(new Callable<Result>() {
+            public Result call() throws Exception {
+                PreviewLoader loader = PreviewLoader.probe(app, source,
+                        PreviewCache.DEFAULT_MAX_SIZE);
+                return new Result(loader, loader.load(app.getContentResolver()));
+            }
+        });
+        final Slot slot = new Slot(source, future);
+        Slot previous;
+        synchronized (CropPrewarm.class) {
+            previous = sSlot;
+            sSlot = slot;
+        }
+        release(previous);
+
+        sExecutor.schedule(new Runnable() {
+            public void run() {
+                synchronized (CropPrewarm.class) {
+                    if (sSlot != slot) return;
+                    sSlot = null;
+                }
+                release(slot);
+            }
+        }, MAX_AGE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops a prewarmed preview which won't be used.
+     */
+    public static void cancel() {
+        Slot slot;
+        synchronized (CropPrewarm.class) {
+            slot = sSlot;
+            sSlot = null;
+        }
+        release(slot);
+    }
+
+    /**
+     * Takes over the prewarmed preview of source, waiting for it if needed.
+     *
+     * @return null if there is none for this source or it failed
+     */
+    static Result adopt(Uri source) {
+        Slot slot;
+        synchronized (CropPrewarm.class) {
+            slot = sSlot;
+            if (slot == null || !slot.source.equals(source)) return null;
+            sSlot = null;
+        }
+        try {
+            Result result = slot.future.get();
+            return result.preview == null ? null : result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            // replaced in the meantime
+        } catch (ExecutionException e) {
+            Log.w(TAG, "prewarm of " + source + " failed: " + e.getCause());
+        }
+        return null;
+    }
+
+    private static void release(Slot slot) {
+        // not done yet: the result is discarded and collected
+        if (slot == null || slot.future.cancel(false)) return;
+        try {
+            Result result = slot.future.get();
+            if (result.preview != null) {
+                result.preview.recycle();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // nothing to release
+        }
+    }
+}
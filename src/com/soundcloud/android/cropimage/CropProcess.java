@@ -0,0 +1,202 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Client of {@link CropService}: crops a source into an output in the crop
+ * process. Only file descriptors and a few numbers cross the process
+ * boundary, the pixels stay on the other side. The output is written
+ * through a temp file like {@link OutputWriter} does, so it is never left
+ * partial, also if the crop process dies.
+ *
+ * The calls block, make them off the main thread. {@link #release()} lets
+ * the crop process exit. The source is decoded with the platform's
+ * BitmapRegionDecoder, registered {@link CropDecoder}s are not used in the
+ * crop process; crop other sources in process.
+ */
+public final class CropProcess {
+
+    private static final long CONNECT_TIMEOUT_MS = 10 * 1000;
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private boolean mBound;
+    private Messenger mService;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            synchronized (mLock) {
+                mService = new Messenger(binder);
+                mLock.notifyAll();
+            }
+        }
+
+        public void onServiceDisconnected(ComponentName name) {
+            // crashed or killed, reconnected when it restarts
+            synchronized (mLock) {
+                mService = null;
+            }
+        }
+    };
+
+    public CropProcess(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Crops rect, in the coordinates of the stored (unrotated) source, and
+     * saves it rotated upright and scaled to outWidth x outHeight.
+     *
+     * @param options the output extras of CropImageActivity ("outputFormat",
+     *                "outputQuality", "jpeg-*", ...), may be null
+     * @return the number of bytes written
+     * @throws IOException also if the crop process died
+     * @throws IllegalArgumentException if rect is outside of the source or an
+     *                                  option is invalid
+     */
+    public long crop(Uri source, Rect rect, int rotation, int outWidth, int outHeight,
+                     Bitmap.Config config, Uri output, Bundle options) throws IOException {
+        final ContentResolver resolver = mContext.getContentResolver();
+        File temp = OutputWriter.createTemp(mContext, output);
+        ParcelFileDescriptor in = null, out = null;
+        boolean written = false;
+        try {
+            in = resolver.openFileDescriptor(source, "r");
+            out = ParcelFileDescriptor.open(temp,
+                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_TRUNCATE);
+
+            Bundle request = new Bundle();
+            request.putParcelable("source", in);
+            request.putParcelable("output", out);
+            request.putParcelable("crop-rect", rect);
+            request.putInt("exif-rotation", rotation);
+            request.putInt("width", outWidth);
+            request.putInt("height", outHeight);
+            request.putString("config", config.name());
+            request.putBundle("options", options);
+
+            Bundle reply = send(request);
+            Serializable error = reply.getSerializable("error");
+            if (error instanceof IOException) throw (IOException) error;
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error != null) throw new IOException(error.toString());
+            written = true;
+        } finally {
+            CropService.close(in);
+            CropService.close(out);
+            if (!written) {
+                temp.delete();
+            }
+        }
+        return OutputWriter.commit(resolver, temp, output);
+    }
+
+    /**
+     * Unbinds from the crop process, which exits once no client is bound.
+     */
+    public void release() {
+        synchronized (mLock) {
+            if (mBound) {
+                mContext.unbindService(mConnection);
+                mBound = false;
+                mService = null;
+            }
+        }
+    }
+
+    private Messenger connect() throws IOException {
+        synchronized (mLock) {
+            if (!mBound) {
+                mBound = mContext.bindService(new Intent(mContext, CropService.class),
+                        mConnection, Context.BIND_AUTO_CREATE);
+                if (!mBound) {
+                    throw new IOException("cannot bind " + CropService.class.getName());
+                }
+            }
+            final long deadline = SystemClock.uptimeMillis() + CONNECT_TIMEOUT_MS;
+            while (mService == null) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("crop process not connected");
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return mService;
+        }
+    }
+
+    private Bundle send(Bundle request) throws IOException {
+        final Messenger service = connect();
+        final Bundle[] reply = new Bundle[1];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        // replies come in on the main thread, the caller waits on its own
+        Handler handler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == CropService.MSG_RESULT) {
+                    reply[0] = msg.getData();
+                    done.countDown();
+                }
+            }
+        };
+        IBinder.DeathRecipient death = new IBinder.DeathRecipient() {
+            public void binderDied() {
+                done.countDown();
+            }
+        };
+
+        IBinder binder = service.getBinder();
+        try {
+            binder.linkToDeath(death, 0);
+        } catch (RemoteException e) {
+            throw new IOException("crop process died");
+        }
+        try {
+            Message msg = Message.obtain(null, CropService.MSG_CROP);
+            msg.setData(request);
+            msg.replyTo = new Messenger(handler);
+            service.send(msg);
+            done.await();
+        } catch (RemoteException e) {
+            throw new IOException("crop process died");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            binder.unlinkToDeath(death, 0);
+        }
+        if (reply[0] == null) {
+            throw new IOException("crop process died");
+        }
+        return reply[0];
+    }
+}
@@ -0,0 +1,153 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hands cropped pixels to the caller through a file descriptor instead of a
+ * Parcelable Bitmap in the result intent, which is copied through Binder and
+ * fails with TransactionTooLargeException beyond about 1 MB.
+ *
+ * The pixels are written uncompressed into a memory-mapped file in the cache
+ * directory and served by {@link CropResultProvider}. Callers open the
+ * returned Uri with {@link #readBitmap(ContentResolver, Uri)}, or read the raw
+ * format themselves: a 16 byte big-endian header (magic, width, height,
+ * Bitmap.Config ordinal) followed by the pixels as copied by
+ * Bitmap.copyPixelsToBuffer().
+ */
+public class CropResult {
+
+    static final int MAGIC = 0x43525058; // "CRPX"
+    static final int HEADER_SIZE = 16;
+
+    static final String DIRECTORY = "cropimage-results";
+
+    // Results nobody picked up are removed after a day.
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private CropResult() {
+    }
+
+    /**
+     * Writes the pixels of the bitmap to a new result file and returns the
+     * provider Uri serving it.
+     */
+    public static Uri write(Context context, Bitmap bitmap) throws IOException {
+        File dir = getDirectory(context);
+        deleteStale(dir);
+
+        File file = File.createTempFile("crop", ".raw", dir);
+        try {
+            writePixels(file, bitmap, true);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return CropResultProvider.getUri(context, file.getName());
+    }
+
+    /**
+     * Writes the header and the pixels of the bitmap to file, whose length
+     * is set to fit.
+     *
+     * @param sync whether to wait for the pixels to reach the storage
+     */
+    static void writePixels(File file, Bitmap bitmap, boolean sync) throws IOException {
+        final int pixelBytes = bitmap.getRowBytes() * bitmap.getHeight();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // one copy: straight from the bitmap into the page cache
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + pixelBytes);
+            map.order(ByteOrder.BIG_ENDIAN);
+            map.putInt(MAGIC)
+               .putInt(bitmap.getWidth())
+               .putInt(bitmap.getHeight())
+               .putInt(bitmap.getConfig().ordinal());
+            bitmap.copyPixelsToBuffer(map);
+            if (sync) {
+                map.force();
+            }
+        } finally {
+            Util.closeSilently(raf);
+        }
+    }
+
+    /**
+     * Reads a result written by {@link #write(Context, Bitmap)} back into a
+     * Bitmap and deletes it.
+     */
+    public static Bitmap readBitmap(ContentResolver resolver, Uri uri) throws IOException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new IOException("cannot open " + uri);
+        }
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        try {
+            return readPixels(in.getChannel(), uri);
+        } finally {
+            Util.closeSilently(in);
+            resolver.delete(uri, null, null);
+        }
+    }
+
+    /**
+     * Maps a file written by {@link #writePixels(File, Bitmap, boolean)} and
+     * copies the pixels into a new Bitmap.
+     */
+    static Bitmap readPixels(FileChannel channel, Object name) throws IOException {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        map.order(ByteOrder.BIG_ENDIAN);
+        if (channel.size() < HEADER_SIZE || map.getInt() != MAGIC) {
+            throw new IOException("not a crop result: " + name);
+        }
+        int width = map.getInt();
+        int height = map.getInt();
+        int ordinal = map.getInt();
+        if (width <= 0 || height <= 0 || ordinal < 0 || ordinal >= Bitmap.Config.values().length) {
+            throw new IOException("invalid header: " + name);
+        }
+        Bitmap.Config config = Bitmap.Config.values()[ordinal];
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        ByteBuffer pixels = map.slice();
+        if (pixels.remaining() < bitmap.getRowBytes() * height) {
+            bitmap.recycle();
+            throw new IOException("truncated: " + name);
+        }
+        bitmap.copyPixelsFromBuffer(pixels);
+        return bitmap;
+    }
+
+    static File getDirectory(Context context) throws IOException {
+        File dir = new File(context.getCacheDir(), DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteStale(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > MAX_AGE) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Serves the files written by {@link CropResult} and encodes the crops
+ * recorded by {@link LazyCropOutput} on first read. Declare it in the manifest
+ * of the application with the authority "&lt;package name&gt;.cropimage.results":
+ *
+ * <pre>
+ * &lt;provider
+ *     android:name="com.soundcloud.android.cropimage.CropResultProvider"
+ *     android:authorities="com.example.app.cropimage.results"
+ *     android:exported="false"
+ *     android:grantUriPermissions="true" /&gt;
+ * </pre>
+ */
+public class CropResultProvider extends ContentProvider {
+
+    static final String AUTHORITY_SUFFIX = ".cropimage.results";
+
+    static String getAuthority(Context context) {
+        return context.getPackageName() + AUTHORITY_SUFFIX;
+    }
+
+    static Uri getUri(Context context, String name) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(getAuthority(context))
+                .appendPath(name)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        File file = getFile(uri);
+        if (!file.exists()) {
+            File request = LazyCropOutput.getRequestFile(file);
+            if (request != null && request.exists()) {
+                return LazyCropOutput.open(getContext(), request, file);
+            }
+            throw new FileNotFoundException(uri.toString());
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        try {
+            File file = getFile(uri);
+            File request = LazyCropOutput.getRequestFile(file);
+            boolean deleted = request != null && request.delete();
+            return file.delete() || deleted ? 1 : 0;
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        if (uri.getPath() != null && uri.getPath().endsWith(LazyCropOutput.OUTPUT_SUFFIX)) {
+            try {
+                File request = LazyCropOutput.getRequestFile(getFile(uri));
+                if (request != null && request.exists()) {
+                    return LazyCropOutput.read(request).getMimeType();
+                }
+            } catch (IOException e) {
+                // served as before
+            }
+            return "image/jpeg";
+        }
+        return "application/octet-stream";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    private File getFile(Uri uri) throws FileNotFoundException {
+        String name = uri.getLastPathSegment();
+        // only plain names, no way out of the results directory
+        if (name == null || name.indexOf('/') >= 0 || name.startsWith(".")) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        try {
+            return new File(CropResult.getDirectory(getContext()), name);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.io.IOException;
+
+/**
+ * Saves a crop made with an embedded {@link CropImageView} the way
+ * CropImageActivity saves its outputs: atomically, in the format given by
+ * the same extras ("outputFormat", "outputQuality", "max-output-bytes" and
+ * the "jpeg-*" options). Call it off the main thread.
+ */
+public final class CropSaver {
+
+    private CropSaver() {
+    }
+
+    /**
+     * @param options the output extras, or null for a JPEG at quality 100
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    public static long save(ContentResolver resolver, Bitmap crop, Uri output, Bundle options)
+            throws IOException {
+        return OutputWriter.write(resolver, output, crop, OutputEncoder.fromExtras(options));
+    }
+}
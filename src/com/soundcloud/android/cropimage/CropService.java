@@ -0,0 +1,173 @@
+package com.soundcloud.android.cropimage;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes and encodes crops in a process of its own, so the full resolution
+ * pixels and the encoder buffers never enter the heap of the app, and an
+ * out of memory error only takes this process down. Used through
+ * {@link CropProcess}. Declare it in the manifest of the application (the
+ * library's manifest does, for builds which merge it):
+ *
+ * <pre>
+ * &lt;service
+ *     android:name="com.soundcloud.android.cropimage.CropService"
+ *     android:process=":cropimage"
+ *     android:exported="false" /&gt;
+ * </pre>
+ *
+ * A request carries the source and the output as file descriptors, the
+ * reply only the size written or the error. The process exits once the last
+ * client unbinds.
+ *
+ * Sources are decoded with BitmapRegionDecoder: the {@link CropDecoder}s
+ * registered with {@link CropDecoders} live in the app's process and don't
+ * reach this one.
+ */
+public class CropService extends Service {
+
+    private static final String TAG = CropService.class.getSimpleName();
+
+    static final int MSG_CROP = 1;
+    static final int MSG_RESULT = 2;
+
+    private HandlerThread mThread;
+    private Messenger mMessenger;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // one crop at a time, off the main thread
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mMessenger = new Messenger(new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_CROP) {
+                    reply(msg);
+                } else {
+                    super.handleMessage(msg);
+                }
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        mThread.quit();
+        super.onDestroy();
+        if (isOwnProcess()) {
+            // an idle process would keep its heap high-water mark
+            Process.killProcess(Process.myPid());
+        }
+    }
+
+    // Whether the service runs in its own process, not in the app's.
+    private boolean isOwnProcess() {
+        try {
+            String process = getPackageManager().getServiceInfo(
+                    new ComponentName(this, CropService.class), 0).processName;
+            return process != null && !process.equals(getApplicationInfo().processName);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void reply(Message request) {
+        Bundle data = request.getData();
+        ParcelFileDescriptor source = data.getParcelable("source");
+        ParcelFileDescriptor output = data.getParcelable("output");
+        Bundle result = new Bundle();
+        try {
+            result.putLong("output-bytes", crop(source, output, data));
+        } catch (IOException e) {
+            Log.e(TAG, "error cropping picture: " + e.getMessage(), e);
+            result.putSerializable("error", e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "error cropping picture: " + e.getMessage(), e);
+            result.putSerializable("error", e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "error cropping picture: " + e.getMessage(), e);
+            result.putSerializable("error", new IOException("out of memory: " + e.getMessage()));
+        } finally {
+            close(source);
+            close(output);
+        }
+
+        Message reply = Message.obtain(null, MSG_RESULT);
+        reply.setData(result);
+        try {
+            request.replyTo.send(reply);
+        } catch (RemoteException e) {
+            Log.w(TAG, "client went away: " + e);
+        }
+    }
+
+    private long crop(ParcelFileDescriptor source, ParcelFileDescriptor output, Bundle data)
+            throws IOException {
+        if (source == null || output == null) {
+            throw new IOException("missing source or output");
+        }
+        Rect rect = data.getParcelable("crop-rect");
+        int[] outSize = { data.getInt("width"), data.getInt("height") };
+        Bitmap.Config config = Bitmap.Config.valueOf(data.getString("config"));
+        OutputEncoder encoder = OutputEncoder.fromExtras(data.getBundle("options"));
+
+        Bitmap crop;
+        CropDecoder.RegionDecoder decoder =
+                CropDecoders.newPlatformRegionDecoder(source.getFileDescriptor());
+        try {
+            crop = MultiRegionCrop.decodeCrop(decoder, rect, data.getInt("exif-rotation"),
+                    outSize, config, new CropSessionMetrics());
+        } finally {
+            decoder.recycle();
+        }
+
+        try {
+            // closed with the descriptor
+            FileOutputStream file = new FileOutputStream(output.getFileDescriptor());
+            OutputStream out = new BufferedOutputStream(file, OutputWriter.BUFFER_SIZE);
+            long bytes = encoder.write(crop, out);
+            out.flush();
+            file.getFD().sync();
+            return bytes;
+        } finally {
+            crop.recycle();
+        }
+    }
+
+    // ParcelFileDescriptor is not Closeable before API 16.
+    static void close(ParcelFileDescriptor fd) {
+        if (fd == null) return;
+        try {
+            fd.close();
+        } catch (IOException ignored) {
+            // nothing to be done
+        }
+    }
+}
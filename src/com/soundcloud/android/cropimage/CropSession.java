@@ -0,0 +1,348 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Crops a list of sources, one after the other, in the same activity. The
+ * caller passes the "session-sources" and "session-outputs" extras, two
+ * ArrayLists of Uris of the same length.
+ *
+ * While the user crops one image the next one is probed and decoded on a
+ * prefetch thread, and a confirmed crop is decoded and saved on a writer
+ * thread while the user already crops the next. A save waits for the
+ * previous one, so at most three images are held at once: the one shown,
+ * the prefetched next one and the one being saved.
+ *
+ * Used from the UI thread and from the activity's background jobs, which
+ * never run at the same time (see {@link #begin()}). The session outlives a
+ * configuration change: the results of a job go to the activity attached
+ * when they arrive, not to the one which started it.
+ */
+class CropSession {
+
+    private static final String TAG = CropSession.class.getSimpleName();
+
+    /**
+     * The activity showing the session, on the UI thread.
+     */
+    interface Host {
+        void showSessionImage(CropPrewarm.Result next);
+
+        // Ends the session with the outputs saved so far.
+        void returnSessionOutputs();
+    }
+
+    private final ArrayList<Uri> mSources, mOutputs;
+    private final ExecutorService mPrefetcher = newExecutor(TAG + "-prefetch");
+    private final ExecutorService mWriter = newExecutor(TAG + "-writer");
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // guarded by mSaved
+    private final ArrayList<Uri> mSaved = new ArrayList<Uri>();
+    private final ArrayList<Uri> mFailed = new ArrayList<Uri>();
+    private Exception mError;
+
+    // read by onSaveInstanceState() while a job may move on
+    private volatile int mIndex;
+    private Future<CropPrewarm.Result> mNext;
+    private Future<?> mLastSave;
+
+    // UI thread only
+    private Host mHost;
+    private boolean mBusy;
+    private boolean mPendingDone;
+    private CropPrewarm.Result mPendingImage;
+
+    private CropSession(ArrayList<Uri> sources, ArrayList<Uri> outputs) {
+        mSources = sources;
+        mOutputs = outputs;
+    }
+
+    /**
+     * @param state the instance state of a previous activity, which holds
+     *              its position in the session (see saveState()), or null
+     * @return null if no session is requested
+     * @throws IllegalArgumentException if the outputs don't match the sources
+     */
+    static CropSession fromExtras(Bundle extras, Bundle state) {
+        if (extras == null) return null;
+        ArrayList<Uri> sources = extras.getParcelableArrayList("session-sources");
+        if (sources == null) return null;
+        ArrayList<Uri> outputs = extras.getParcelableArrayList("session-outputs");
+        if (sources.isEmpty() || outputs == null || outputs.size() != sources.size()) {
+            throw new IllegalArgumentException("session-outputs must hold one output per source");
+        }
+        CropSession session = new CropSession(sources, outputs);
+        if (state != null) {
+            session.mIndex = Math.max(0, Math.min(state.getInt("session-index"), sources.size() - 1));
+            ArrayList<Uri> saved = state.getParcelableArrayList("session-saved");
+            if (saved != null) {
+                session.mSaved.addAll(saved);
+            }
+            ArrayList<Uri> failed = state.getParcelableArrayList("session-failed");
+            if (failed != null) {
+                session.mFailed.addAll(failed);
+            }
+        }
+        return session;
+    }
+
+    void saveState(Bundle outState) {
+        outState.putInt("session-index", mIndex);
+        outState.putParcelableArrayList("session-saved", getSaved());
+        outState.putParcelableArrayList("session-failed", getFailed());
+    }
+
+    private static ExecutorService newExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    Uri getSource() {
+        return mSources.get(mIndex);
+    }
+
+    Uri getOutput() {
+        return mOutputs.get(mIndex);
+    }
+
+    boolean hasNext() {
+        return mIndex + 1 < mSources.size();
+    }
+
+    /**
+     * Attaches the activity now showing the session and hands it a result
+     * which arrived while there was none.
+     */
+    void attach(Host host) {
+        mHost = host;
+        if (mPendingDone || mPendingImage != null) {
+            final boolean done = mPendingDone;
+            final CropPrewarm.Result image = mPendingImage;
+            mPendingDone = false;
+            mPendingImage = null;
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    deliver(done, image);
+                }
+            });
+        }
+    }
+
+    void detach(Host host) {
+        if (mHost == host) mHost = null;
+    }
+
+    // Marks a job as running, until its result is delivered.
+    void begin() {
+        mBusy = true;
+    }
+
+    boolean isBusy() {
+        return mBusy;
+    }
+
+    /**
+     * Hands the next image to the attached activity, from a job.
+     */
+    void postImage(final CropPrewarm.Result next) {
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                deliver(false, next);
+            }
+        });
+    }
+
+    /**
+     * Ends the session in the attached activity, from a job.
+     */
+    void postDone() {
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                deliver(true, null);
+            }
+        });
+    }
+
+    private void deliver(boolean done, CropPrewarm.Result image) {
+        mBusy = false;
+        if (mHost == null) {
+            // between two instances of the activity
+            mPendingDone = done;
+            mPendingImage = image;
+        } else if (done) {
+            mHost.returnSessionOutputs();
+        } else {
+            mHost.showSessionImage(image);
+        }
+    }
+
+    /**
+     * Starts loading the preview of the next source, unless it is already
+     * loading or there is none.
+     *
+     * @param cacheSize size of the preview cache, 0 to not use it
+     */
+    void prefetchNext(Context context, final long cacheSize) {
+        if (mNext != null || !hasNext()) return;
+        final Context app = context.getApplicationContext();
+        final Uri source = mSources.get(mIndex + 1);
+        try {
+            mNext = mPrefetcher.submit(new Callable<CropPrewarm.Result>() {
+                public CropPrewarm.Result call() throws Exception {
+                    PreviewLoader loader = PreviewLoader.probe(app, source, cacheSize);
+                    return new CropPrewarm.Result(loader, loader.load(app.getContentResolver()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+            Log.w(TAG, "not prefetching " + source + ": " + e);
+        }
+    }
+
+    /**
+     * Moves on to the next source and returns its preview, waiting for the
+     * prefetch if it is still running.
+     *
+     * @return null if the source can't be decoded, the caller moves on again
+     */
+    CropPrewarm.Result next() throws InterruptedException {
+        Future<CropPrewarm.Result> next = mNext;
+        mNext = null;
+        mIndex++;
+        if (next == null) return null;
+        try {
+            CropPrewarm.Result result = next.get();
+            return result.preview == null ? null : result;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "error reading " + getSource() + ": " + e.getCause());
+            return null;
+        } catch (CancellationException e) {
+            // closed
+            return null;
+        }
+    }
+
+    /**
+     * Queues the save of the current source on the writer thread, after
+     * waiting for the previous save. The output is reported as saved if the
+     * task returns true.
+     */
+    void save(final Callable<Boolean> task) throws InterruptedException {
+        awaitSave();
+        final Uri output = getOutput();
+        try {
+            mLastSave = mWriter.submit(new Runnable() {
+                public void run() {
+                    try {
+                        if (task.call()) {
+                            synchronized (mSaved) {
+                                mSaved.add(output);
+                            }
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Cannot write file: " + output, e);
+                        failed(output, e);
+                    } catch (OutOfMemoryError e) {
+                        Log.e(TAG, "Cannot write file: " + output, e);
+                        failed(output, new IOException("out of memory"));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed, the output is not reported
+            Log.w(TAG, "not saving " + output + ": " + e);
+        }
+    }
+
+    void awaitSave() throws InterruptedException {
+        if (mLastSave == null) return;
+        try {
+            mLastSave.get();
+        } catch (ExecutionException ignored) {
+            // logged by the task
+        } catch (CancellationException ignored) {
+            // closed
+        }
+        mLastSave = null;
+    }
+
+    private void failed(Uri output, Exception e) {
+        synchronized (mSaved) {
+            mFailed.add(output);
+            if (mError == null) mError = e;
+        }
+    }
+
+    // The outputs written so far, in order.
+    ArrayList<Uri> getSaved() {
+        synchronized (mSaved) {
+            return new ArrayList<Uri>(mSaved);
+        }
+    }
+
+    // The outputs which couldn't be written; skipped ones aren't included.
+    ArrayList<Uri> getFailed() {
+        synchronized (mSaved) {
+            return new ArrayList<Uri>(mFailed);
+        }
+    }
+
+    // The first write failure, null if there was none (or only before a restart).
+    Exception getError() {
+        synchronized (mSaved) {
+            return mError;
+        }
+    }
+
+    /**
+     * Drops the prefetched preview. A save which is already queued still
+     * completes.
+     */
+    void close() {
+        mPrefetcher.shutdown();
+        mWriter.shutdown();
+        mHost = null;
+        if (mPendingImage != null) {
+            mPendingImage.preview.recycle();
+            mPendingImage = null;
+        }
+        Future<CropPrewarm.Result> next = mNext;
+        mNext = null;
+        // not done yet: the result is discarded and collected
+        if (next == null || next.cancel(false)) return;
+        try {
+            CropPrewarm.Result result = next.get();
+            if (result.preview != null) {
+                result.preview.recycle();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // nothing to release
+        } catch (CancellationException ignored) {
+            // nothing to release
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.soundcloud.android.cropimage;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+/**
+ * Stage timings and peak bitmap memory of a single crop session, from the
+ * launch intent to the saved file.
+ *
+ * Pass the "return-metrics" extra to get them back in the result intent as a
+ * Bundle under "metrics", or register a global {@link Listener}.
+ */
+public class CropSessionMetrics {
+
+    public interface Listener {
+        /**
+         * Called once per session when the activity finishes, on the thread
+         * that finished it.
+         */
+        public void onCropSessionFinished(CropSessionMetrics metrics);
+    }
+
+    public static final int STAGE_FIRST_FRAME    = 0; // launch intent to first frame
+    public static final int STAGE_PROBE          = 1; // source lookup and EXIF read
+    public static final int STAGE_PREVIEW_DECODE = 2;
+    public static final int STAGE_REGION_DECODE  = 3;
+    public static final int STAGE_RESAMPLE       = 4;
+    public static final int STAGE_ENCODE         = 5;
+    public static final int STAGE_EXIF_WRITE     = 6; // now part of STAGE_ENCODE, always 0
+
+    private static final String[] STAGE_NAMES = {
+        "first_frame", "probe", "preview_decode", "region_decode",
+        "resample", "encode", "exif_write"
+    };
+
+    private static volatile Listener sListener;
+
+    private final long[] mStarts = new long[STAGE_NAMES.length];
+    private final long[] mDurations = new long[STAGE_NAMES.length];
+    private long mBitmapBytes;
+    private long mPeakBitmapBytes;
+
+    public CropSessionMetrics() {
+        for (int i = 0; i < mDurations.length; i++) {
+            mDurations[i] = -1;
+        }
+    }
+
+    public static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    // Starts timing a stage at the given uptime in ms.
+    synchronized void begin(int stage, long uptime) {
+        mStarts[stage] = uptime;
+    }
+
+    synchronized void begin(int stage) {
+        begin(stage, SystemClock.uptimeMillis());
+    }
+
+    // Ends a stage. Repeated stages (e.g. several encodes) are summed up.
+    synchronized void end(int stage) {
+        if (mStarts[stage] == 0) return;
+        long duration = SystemClock.uptimeMillis() - mStarts[stage];
+        mDurations[stage] = Math.max(0, mDurations[stage]) + duration;
+        mStarts[stage] = 0;
+    }
+
+    // Stage duration in ms, or -1 if the stage did not run.
+    public synchronized long getDuration(int stage) {
+        return mDurations[stage];
+    }
+
+    synchronized void bitmapAllocated(Bitmap bitmap) {
+        if (bitmap == null) return;
+        mBitmapBytes += sizeOf(bitmap);
+        mPeakBitmapBytes = Math.max(mPeakBitmapBytes, mBitmapBytes);
+    }
+
+    synchronized void bitmapReleased(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        mBitmapBytes = Math.max(0, mBitmapBytes - sizeOf(bitmap));
+    }
+
+    // Largest amount of bitmap memory the session held at any time.
+    public synchronized long getPeakBitmapBytes() {
+        return mPeakBitmapBytes;
+    }
+
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            bundle.putLong(STAGE_NAMES[i], mDurations[i]);
+        }
+        bundle.putLong("peak_bitmap_bytes", mPeakBitmapBytes);
+        return bundle;
+    }
+
+    void finish() {
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onCropSessionFinished(this);
+        }
+    }
+
+    static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    public String toString() {
+        return "CropSessionMetrics" + toBundle();
+    }
+}
@@ -0,0 +1,194 @@
+package com.soundcloud.android.cropimage;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands images which are already in memory to CropImageActivity without
+ * writing them to a file: register them for a handle Uri and pass that as
+ * the intent data.
+ *
+ * Encoded images (JPEG, PNG, ...) are decoded straight from the buffer, also
+ * by the region decoder, and stay registered until {@link #unregister(Uri)}.
+ * A Bitmap is shown and cropped as is; it is handed over to the first
+ * activity started with its handle, which recycles it when done. Handles
+ * only live as long as the process.
+ */
+public final class CropSources {
+
+    static final String SCHEME = "cropimage-source";
+
+    // guarded by sSources
+    private static final Map<String, Object> sSources = new HashMap<String, Object>();
+    private static int sNextId;
+
+    private CropSources() {
+    }
+
+    /**
+     * Registers an encoded image. The buffer's content between position and
+     * limit must not change while registered.
+     */
+    public static Uri register(ByteBuffer encoded) {
+        return add(encoded.slice());
+    }
+
+    public static Uri register(byte[] encoded) {
+        return add(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Registers a decoded image, which the crop activity takes over.
+     */
+    public static Uri register(Bitmap bitmap) {
+        return add(bitmap);
+    }
+
+    public static void unregister(Uri handle) {
+        synchronized (sSources) {
+            sSources.remove(handle.getLastPathSegment());
+        }
+    }
+
+    private static Uri add(Object source) {
+        synchronized (sSources) {
+            String id = String.valueOf(++sNextId);
+            sSources.put(id, source);
+            return new Uri.Builder().scheme(SCHEME).authority("source").appendPath(id).build();
+        }
+    }
+
+    private static Object get(Uri uri) {
+        if (uri == null || !SCHEME.equals(uri.getScheme())) return null;
+        synchronized (sSources) {
+            return sSources.get(uri.getLastPathSegment());
+        }
+    }
+
+    static boolean isHandle(Uri uri) {
+        return uri != null && SCHEME.equals(uri.getScheme());
+    }
+
+    static boolean isBitmap(Uri uri) {
+        return get(uri) instanceof Bitmap;
+    }
+
+    /**
+     * Removes a registered Bitmap and returns it, null if there is none.
+     */
+    static Bitmap takeBitmap(Uri uri) {
+        if (!isBitmap(uri)) return null;
+        synchronized (sSources) {
+            Object source = sSources.remove(uri.getLastPathSegment());
+            return source instanceof Bitmap ? (Bitmap) source : null;
+        }
+    }
+
+    /**
+     * Opens a handle's encoded image, or any other Uri through the resolver.
+     */
+    static InputStream openInputStream(ContentResolver resolver, Uri uri) throws IOException {
+        if (!isHandle(uri)) return resolver.openInputStream(uri);
+        return new ByteBufferInputStream(getEncoded(uri));
+    }
+
+    /**
+     * Decodes a handle's encoded image without copying it, or any other Uri
+     * through the resolver.
+     */
+    static Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        if (isHandle(uri)) {
+            ByteBuffer buffer = getEncoded(uri);
+            if (buffer.hasArray()) {
+                return BitmapFactory.decodeByteArray(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining(), options);
+            }
+        }
+        InputStream is = openInputStream(resolver, uri);
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            Util.closeSilently(is);
+        }
+    }
+
+    /**
+     * A region decoder over a handle's encoded image, sharing its bytes, or
+     * over any other Uri opened through the resolver.
+     */
+    @TargetApi(10)
+    static BitmapRegionDecoder newRegionDecoder(ContentResolver resolver, Uri uri)
+            throws IOException {
+        if (isHandle(uri)) {
+            ByteBuffer buffer = getEncoded(uri);
+            if (buffer.hasArray()) {
+                return BitmapRegionDecoder.newInstance(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining(), false);
+            }
+        }
+        InputStream is = openInputStream(resolver, uri);
+        if (is == null) {
+            throw new FileNotFoundException("cannot open " + uri);
+        }
+        try {
+            return BitmapRegionDecoder.newInstance(is, false);
+        } finally {
+            Util.closeSilently(is);
+        }
+    }
+
+    private static ByteBuffer getEncoded(Uri uri) throws FileNotFoundException {
+        Object source = get(uri);
+        if (!(source instanceof ByteBuffer)) {
+            throw new FileNotFoundException("no encoded image registered for " + uri);
+        }
+        // own position, several readers may decode at once
+        return ((ByteBuffer) source).duplicate();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.soundcloud.android.cropimage;
+
+import android.os.Build;
+import android.os.Debug;
+
+import java.lang.reflect.Method;
+
+/**
+ * Opt-in frame and gesture statistics for the crop UI. Install a {@link Listener}
+ * with {@link CropImageView#setFrameMetricsListener(Listener)} to receive the
+ * numbers after every drag or zoom animation.
+ */
+public class FrameMetrics {
+
+    public interface Listener {
+        /**
+         * Called on the UI thread when a gesture or animation has ended. The
+         * metrics are reset after this call returns, copy what you need.
+         */
+        public void onFrameMetrics(FrameMetrics metrics);
+    }
+
+    // onDraw() of the whole view, in microseconds
+    public final Histogram drawTime = new Histogram(
+            new long[] { 1000, 2000, 4000, 8000, 12000, 16000, 24000, 33000, 50000, 100000 });
+
+    // the HighlightView overlay part of onDraw(), in microseconds
+    public final Histogram overlayDrawTime = new Histogram(
+            new long[] { 250, 500, 1000, 2000, 4000, 8000, 16000 });
+
+    // from the touch sample to the frame showing it, in milliseconds
+    public final Histogram touchLatency = new Histogram(
+            new long[] { 8, 16, 24, 33, 50, 66, 100, 200 });
+
+    // objects allocated on the UI thread per frame
+    public final Histogram allocations = new Histogram(
+            new long[] { 0, 1, 5, 10, 50, 100, 500 });
+
+    private int mFrames;
+    private int mDroppedFrames;
+
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    // Frames missed during drags and zoom animations.
+    public int getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    // delayMs is the time from the first gesture step to the frame drawing it
+    void onFrame(long delayMs, float framePeriodMs) {
+        mFrames++;
+        if (delayMs > framePeriodMs * 1.5F) {
+            mDroppedFrames += Math.round(delayMs / framePeriodMs) - 1;
+        }
+    }
+
+    public void reset() {
+        drawTime.reset();
+        overlayDrawTime.reset();
+        touchLatency.reset();
+        allocations.reset();
+        mFrames = 0;
+        mDroppedFrames = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameMetrics{frames=" + mFrames
+                + ", dropped=" + mDroppedFrames
+                + ", drawTime=" + drawTime
+                + ", overlayDrawTime=" + overlayDrawTime
+                + ", touchLatency=" + touchLatency
+                + ", allocations=" + allocations + "}";
+    }
+
+    /**
+     * Fixed bucket histogram. Bucket i counts values <= bounds[i], the last
+     * bucket counts everything above the largest bound.
+     */
+    public static class Histogram {
+        private final long[] mBounds;
+        private final int[] mCounts;
+        private int mCount;
+        private long mSum;
+        private long mMax;
+
+        public Histogram(long[] bounds) {
+            mBounds = bounds;
+            mCounts = new int[bounds.length + 1];
+        }
+
+        public void record(long value) {
+            int i = 0;
+            while (i < mBounds.length && value > mBounds[i]) {
+                i++;
+            }
+            mCounts[i]++;
+            mCount++;
+            mSum += value;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        public long[] getBounds() {
+            return mBounds.clone();
+        }
+
+        public int[] getCounts() {
+            return mCounts.clone();
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        // Upper bound of the bucket containing the given percentile (0-100).
+        public long getPercentile(float percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            int target = (int) Math.ceil(mCount * percentile / 100F);
+            int seen = 0;
+            for (int i = 0; i < mBounds.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return mBounds[i];
+                }
+            }
+            return mMax;
+        }
+
+        public void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        @Override
+        public String toString() {
+            return "{n=" + mCount + ", mean=" + getMean()
+                    + ", p50=" + getPercentile(50) + ", p90=" + getPercentile(90)
+                    + ", max=" + mMax + "}";
+        }
+    }
+
+    // android.os.Trace is API 18, so it is looked up reflectively.
+    static class Trace {
+        private static Method sBegin, sEnd;
+
+        static {
+            if (Build.VERSION.SDK_INT >= 18) {
+                try {
+                    Class<?> trace = Class.forName("android.os.Trace");
+                    sBegin = trace.getMethod("beginSection", String.class);
+                    sEnd = trace.getMethod("endSection");
+                } catch (Exception ignored) {
+                    sBegin = sEnd = null;
+                }
+            }
+        }
+
+        static void beginSection(String name) {
+            if (sBegin != null) {
+                try {
+                    sBegin.invoke(null, name);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+
+        static void endSection() {
+            if (sEnd != null) {
+                try {
+                    sEnd.invoke(null);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static void startAllocCounting() {
+        Debug.startAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    static void stopAllocCounting() {
+        Debug.stopAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    static int getThreadAllocCount() {
+        return Debug.getThreadAllocCount();
+    }
+}
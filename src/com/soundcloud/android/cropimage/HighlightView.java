@@ -24,7 +24,6 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region;
 import android.graphics.drawable.Drawable;
-import android.util.FloatMath;
 import android.view.View;
 
 // This class is used by CropImage to display a highlighted cropping rectangle
@@ -37,12 +36,12 @@ class HighlightView {
     private static final String TAG = "HighlightView";
     View mContext;  // The View displaying the image.
 
-    public static final int GROW_NONE        = (1 << 0);
-    public static final int GROW_LEFT_EDGE   = (1 << 1);
-    public static final int GROW_RIGHT_EDGE  = (1 << 2);
-    public static final int GROW_TOP_EDGE    = (1 << 3);
-    public static final int GROW_BOTTOM_EDGE = (1 << 4);
-    public static final int MOVE             = (1 << 5);
+    public static final int GROW_NONE        = CropGeometry.GROW_NONE;
+    public static final int GROW_LEFT_EDGE   = CropGeometry.GROW_LEFT_EDGE;
+    public static final int GROW_RIGHT_EDGE  = CropGeometry.GROW_RIGHT_EDGE;
+    public static final int GROW_TOP_EDGE    = CropGeometry.GROW_TOP_EDGE;
+    public static final int GROW_BOTTOM_EDGE = CropGeometry.GROW_BOTTOM_EDGE;
+    public static final int MOVE             = CropGeometry.MOVE;
 
 
     public HighlightView(View ctx) {
@@ -173,70 +172,15 @@ class HighlightView {
 
     // Determines which edges are hit by touching at (x, y).
     public int getHit(float x, float y) {
-        Rect r = computeLayout();
-        final float hysteresis = 20F;
-        int retval = GROW_NONE;
-
-        if (mCircle) {
-            float distX = x - r.centerX();
-            float distY = y - r.centerY();
-            int distanceFromCenter =
-                    (int) FloatMath.sqrt(distX * distX + distY * distY);
-            int radius  = mDrawRect.width() / 2;
-            int delta = distanceFromCenter - radius;
-            if (Math.abs(delta) <= hysteresis) {
-                if (Math.abs(distY) > Math.abs(distX)) {
-                    if (distY < 0) {
-                        retval = GROW_TOP_EDGE;
-                    } else {
-                        retval = GROW_BOTTOM_EDGE;
-                    }
-                } else {
-                    if (distX < 0) {
-                        retval = GROW_LEFT_EDGE;
-                    } else {
-                        retval = GROW_RIGHT_EDGE;
-                    }
-                }
-            } else if (distanceFromCenter < radius) {
-                retval = MOVE;
-            } else {
-                retval = GROW_NONE;
-            }
-        } else {
-            // verticalCheck makes sure the position is between the top and
-            // the bottom edge (with some tolerance). Similar for horizCheck.
-            boolean verticalCheck = (y >= r.top - hysteresis)
-                    && (y < r.bottom + hysteresis);
-            boolean horizCheck = (x >= r.left - hysteresis)
-                    && (x < r.right + hysteresis);
-
-            // Check whether the position is near some edge(s).
-            if ((Math.abs(r.left - x)     < hysteresis)  &&  verticalCheck) {
-                retval |= GROW_LEFT_EDGE;
-            }
-            if ((Math.abs(r.right - x)    < hysteresis)  &&  verticalCheck) {
-                retval |= GROW_RIGHT_EDGE;
-            }
-            if ((Math.abs(r.top - y)      < hysteresis)  &&  horizCheck) {
-                retval |= GROW_TOP_EDGE;
-            }
-            if ((Math.abs(r.bottom - y)   < hysteresis)  &&  horizCheck) {
-                retval |= GROW_BOTTOM_EDGE;
-            }
-
-            // Not near any edge but inside the rectangle: move.
-            if (retval == GROW_NONE && r.contains((int) x, (int) y)) {
-                retval = MOVE;
-            }
-        }
-        return retval;
+        computeLayout(mScratchRect);
+        toArray(mScratchRect, mScratchArray);
+        return CropGeometry.getHit(mScratchArray, x, y, mCircle, 20F);
     }
 
     // Handles motion (dx, dy) in screen space.
     // The "edge" parameter specifies which edges the user is dragging.
     void handleMotion(int edge, float dx, float dy) {
-        Rect r = computeLayout();
+        Rect r = computeLayout(mScratchRect);
         if (edge == MOVE) {
             // Convert to image space before sending to moveBy().
             moveBy(dx * (mCropRect.width() / r.width()),
@@ -258,83 +202,28 @@ class HighlightView {
         }
     }
 
-    // Grows the cropping rectangle by (dx, dy) in image space.
+    // Moves the cropping rectangle by (dx, dy) in image space.
     void moveBy(float dx, float dy) {
-        Rect invalRect = new Rect(mDrawRect);
-
+        mInvalRect.set(mDrawRect);
 
-        mCropRect.offset(dx, dy);
+        toArray(mCropRect, mCropArray);
+        CropGeometry.moveBy(mCropArray, mImageArray, dx, dy);
+        mCropRect.set(mCropArray[0], mCropArray[1], mCropArray[2], mCropArray[3]);
 
-        // Put the cropping rectangle inside image rectangle.
-        mCropRect.offset(
-                Math.max(0, mImageRect.left - mCropRect.left),
-                Math.max(0, mImageRect.top  - mCropRect.top));
-
-        mCropRect.offset(
-                Math.min(0, mImageRect.right  - mCropRect.right),
-                Math.min(0, mImageRect.bottom - mCropRect.bottom));
-
-        mDrawRect = computeLayout();
-        invalRect.union(mDrawRect);
-        invalRect.inset(-10, -10);
-        mContext.invalidate(invalRect);
+        computeLayout(mDrawRect);
+        mInvalRect.union(mDrawRect);
+        mInvalRect.inset(-10, -10);
+        mContext.invalidate(mInvalRect);
     }
 
     // Grows the cropping rectangle by (dx, dy) in image space.
     void growBy(float dx, float dy) {
-        if (mMaintainAspectRatio) {
-            if (dx != 0) {
-                dy = dx / mInitialAspectRatio;
-            } else if (dy != 0) {
-                dx = dy * mInitialAspectRatio;
-            }
-        }
+        toArray(mCropRect, mCropArray);
+        CropGeometry.growBy(mCropArray, mImageArray, dx, dy,
+                mMaintainAspectRatio, mInitialAspectRatio);
+        mCropRect.set(mCropArray[0], mCropArray[1], mCropArray[2], mCropArray[3]);
 
-        // Don't let the cropping rectangle grow too fast.
-        // Grow at most half of the difference between the image rectangle and
-        // the cropping rectangle.
-        RectF r = new RectF(mCropRect);
-        if (dx > 0F && r.width() + 2 * dx > mImageRect.width()) {
-            dx = (mImageRect.width() - r.width()) / 2F;
-            if (mMaintainAspectRatio) {
-                dy = dx / mInitialAspectRatio;
-            }
-        }
-        if (dy > 0F && r.height() + 2 * dy > mImageRect.height()) {
-            dy = (mImageRect.height() - r.height()) / 2F;
-            if (mMaintainAspectRatio) {
-                dx = dy * mInitialAspectRatio;
-            }
-        }
-
-        r.inset(-dx, -dy);
-
-        // Don't let the cropping rectangle shrink too fast.
-        final float widthCap = 25F;
-        if (r.width() < widthCap) {
-            r.inset(-(widthCap - r.width()) / 2F, 0F);
-        }
-        float heightCap = mMaintainAspectRatio
-                ? (widthCap / mInitialAspectRatio)
-                : widthCap;
-        if (r.height() < heightCap) {
-            r.inset(0F, -(heightCap - r.height()) / 2F);
-        }
-
-        // Put the cropping rectangle inside the image rectangle.
-        if (r.left < mImageRect.left) {
-            r.offset(mImageRect.left - r.left, 0F);
-        } else if (r.right > mImageRect.right) {
-            r.offset(-(r.right - mImageRect.right), 0);
-        }
-        if (r.top < mImageRect.top) {
-            r.offset(0F, mImageRect.top - r.top);
-        } else if (r.bottom > mImageRect.bottom) {
-            r.offset(0F, -(r.bottom - mImageRect.bottom));
-        }
-
-        mCropRect.set(r);
-        mDrawRect = computeLayout();
+        computeLayout(mDrawRect);
         mContext.invalidate();
     }
 
@@ -345,16 +234,30 @@ class HighlightView {
     }
 
     // Maps the cropping rectangle from image space to screen space.
-    private Rect computeLayout() {
-        RectF r = new RectF(mCropRect.left, mCropRect.top,
-                            mCropRect.right, mCropRect.bottom);
-        mMatrix.mapRect(r);
-        return new Rect(Math.round(r.left), Math.round(r.top),
-                        Math.round(r.right), Math.round(r.bottom));
+    private Rect computeLayout(Rect out) {
+        mScratchRectF.set(mCropRect);
+        mMatrix.mapRect(mScratchRectF);
+        out.set(Math.round(mScratchRectF.left), Math.round(mScratchRectF.top),
+                Math.round(mScratchRectF.right), Math.round(mScratchRectF.bottom));
+        return out;
+    }
+
+    private static void toArray(Rect r, float[] out) {
+        out[0] = r.left;
+        out[1] = r.top;
+        out[2] = r.right;
+        out[3] = r.bottom;
+    }
+
+    private static void toArray(RectF r, float[] out) {
+        out[0] = r.left;
+        out[1] = r.top;
+        out[2] = r.right;
+        out[3] = r.bottom;
     }
 
     public void invalidate() {
-        mDrawRect = computeLayout();
+        computeLayout(mDrawRect);
     }
 
     public void setup(Matrix m, Rect imageRect, RectF cropRect, boolean circle,
@@ -366,11 +269,12 @@ class HighlightView {
 
         mCropRect = cropRect;
         mImageRect = new RectF(imageRect);
+        toArray(mImageRect, mImageArray);
         mMaintainAspectRatio = maintainAspectRatio;
         mCircle = circle;
 
         mInitialAspectRatio = mCropRect.width() / mCropRect.height();
-        mDrawRect = computeLayout();
+        computeLayout(mDrawRect);
 
         mFocusPaint.setARGB(125, 50, 50, 50);
         mNoFocusPaint.setARGB(125, 50, 50, 50);
@@ -386,8 +290,9 @@ class HighlightView {
 
     private ModifyMode mMode = ModifyMode.None;
 
-    Rect mDrawRect;  // in screen space
+    final Rect mDrawRect = new Rect();  // in screen space
     private RectF mImageRect;  // in image space
+    private final float[] mImageArray = new float[4];  // mImageRect for CropGeometry
     RectF mCropRect;  // in image space
     Matrix mMatrix;
 
@@ -402,4 +307,11 @@ class HighlightView {
     private final Paint mFocusPaint = new Paint();
     private final Paint mNoFocusPaint = new Paint();
     private final Paint mOutlinePaint = new Paint();
+
+    // Scratch objects, so touch handling doesn't allocate.
+    private final Rect mScratchRect = new Rect();
+    private final Rect mInvalRect = new Rect();
+    private final RectF mScratchRectF = new RectF();
+    private final float[] mScratchArray = new float[4];
+    private final float[] mCropArray = new float[4];
 }
@@ -18,10 +18,14 @@ package com.soundcloud.android.cropimage;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.AttributeSet;
 import android.view.KeyEvent;
 import android.widget.ImageView;
@@ -61,6 +65,41 @@ abstract class ImageViewTouchBase extends ImageView {
 
     protected Handler mHandler = new Handler();
 
+    // Level of detail: while a gesture or animation is in flight we draw a
+    // downscaled copy of the bitmap (the proxy) instead of the full preview,
+    // and switch back once the view has been idle for LOD_IDLE_DELAY ms.
+    // The proxy is built when the UI thread is idle outside of a gesture,
+    // until then gestures draw the full bitmap.
+    static final int LOD_PROXY_FACTOR = 4;
+    static final long LOD_IDLE_DELAY = 150;
+
+    private boolean mLodEnabled = true;
+    private boolean mInteracting;
+    private Bitmap mProxy;
+    private boolean mProxyScheduled;
+    private final Paint mProxyPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final Runnable mEndInteraction = new Runnable() {
+        public void run() {
+            mInteracting = false;
+            invalidate();
+            onInteractionEnd();
+            // a proxy released (or skipped) meanwhile
+            scheduleProxy();
+        }
+    };
+
+    private final MessageQueue.IdleHandler mBuildProxy = new MessageQueue.IdleHandler() {
+        public boolean queueIdle() {
+            mProxyScheduled = false;
+            // otherwise scheduled again once the interaction ends
+            if (!mInteracting) {
+                buildProxy();
+            }
+            return false;
+        }
+    };
+
     // ImageViewTouchBase will pass a Bitmap to the Recycler if it has finished
     // its use of that Bitmap.
     public interface Recycler {
@@ -88,6 +127,100 @@ abstract class ImageViewTouchBase extends ImageView {
         mRecycler = r;
     }
 
+    public void setLevelOfDetailEnabled(boolean enabled) {
+        mLodEnabled = enabled;
+        if (!enabled) {
+            releaseProxy();
+        } else {
+            scheduleProxy();
+        }
+    }
+
+    // Called for every step of a gesture or animation. Keeps the proxy on
+    // screen until no step has happened for LOD_IDLE_DELAY ms.
+    protected void markInteraction() {
+        mInteracting = true;
+        mHandler.removeCallbacks(mEndInteraction);
+        mHandler.postDelayed(mEndInteraction, LOD_IDLE_DELAY);
+    }
+
+    protected boolean isInteracting() {
+        return mInteracting;
+    }
+
+    // Called once the view has been idle for LOD_IDLE_DELAY ms after a
+    // gesture or animation.
+    protected void onInteractionEnd() {
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        Bitmap proxy = mInteracting && mLodEnabled ? getProxy() : null;
+        if (proxy == null) {
+            // not built yet, or the bitmap is too small for one
+            super.onDraw(canvas);
+            return;
+        }
+
+        // Same transformation ImageView applies to the drawable, with the
+        // proxy scaled back up to the size of the full bitmap.
+        Bitmap bitmap = mBitmapDisplayed.getBitmap();
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(getImageViewMatrix());
+        canvas.scale((float) bitmap.getWidth() / proxy.getWidth(),
+                (float) bitmap.getHeight() / proxy.getHeight());
+        canvas.drawBitmap(proxy, 0, 0, mProxyPaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    // Returns the proxy if it is built and still matches the bitmap.
+    private Bitmap getProxy() {
+        Bitmap bitmap = mBitmapDisplayed.getBitmap();
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+        return mProxy;
+    }
+
+    // Builds the proxy the next time the UI thread is idle.
+    private void scheduleProxy() {
+        if (mProxyScheduled || mProxy != null || !mLodEnabled
+                || mBitmapDisplayed.getBitmap() == null) {
+            return;
+        }
+        mProxyScheduled = true;
+        Looper.myQueue().addIdleHandler(mBuildProxy);
+    }
+
+    // Does nothing if the bitmap is not large enough for a proxy to pay off.
+    private void buildProxy() {
+        Bitmap bitmap = mBitmapDisplayed.getBitmap();
+        if (mProxy != null || !mLodEnabled || bitmap == null || bitmap.isRecycled()
+                || mThisWidth <= 0 || mThisHeight <= 0) {
+            return;
+        }
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        if (pixels <= 2L * mThisWidth * mThisHeight) {
+            return;
+        }
+        try {
+            mProxy = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, bitmap.getWidth() / LOD_PROXY_FACTOR),
+                    Math.max(1, bitmap.getHeight() / LOD_PROXY_FACTOR), true);
+        } catch (OutOfMemoryError e) {
+            // fall back to drawing the full bitmap
+            mLodEnabled = false;
+        }
+    }
+
+    void releaseProxy() {
+        if (mProxy != null) {
+            mProxy.recycle();
+            mProxy = null;
+        }
+    }
+
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
@@ -101,6 +234,7 @@ abstract class ImageViewTouchBase extends ImageView {
         if (mBitmapDisplayed.getBitmap() != null) {
             getProperBaseMatrix(mBitmapDisplayed, mBaseMatrix, true);
             setImageMatrix(getImageViewMatrix());
+            scheduleProxy();
         }
     }
 
@@ -142,8 +276,12 @@ abstract class ImageViewTouchBase extends ImageView {
         }
 
         Bitmap old = mBitmapDisplayed.getBitmap();
+        if (old != bitmap) {
+            releaseProxy();
+        }
         mBitmapDisplayed.setBitmap(bitmap);
         mBitmapDisplayed.setRotation(rotation);
+        scheduleProxy();
 
         if (old != null && old != bitmap && mRecycler != null) {
             mRecycler.recycle(old);
@@ -337,6 +475,7 @@ abstract class ImageViewTouchBase extends ImageView {
                 long now = System.currentTimeMillis();
                 float currentMs = Math.min(durationMs, now - startTime);
                 float target = oldScale + (incrementPerMs * currentMs);
+                markInteraction();
                 zoomTo(target, centerX, centerY);
 
                 if (currentMs < durationMs) {
@@ -402,6 +541,7 @@ abstract class ImageViewTouchBase extends ImageView {
     }
 
     protected void panBy(float dx, float dy) {
+        markInteraction();
         postTranslate(dx, dy);
         setImageMatrix(getImageViewMatrix());
     }
@@ -0,0 +1,1223 @@
+package com.soundcloud.android.cropimage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * JPEG encoder for the outputs, in plain Java so it can be benchmarked off
+ * the device. Unlike Bitmap.compress it can subsample the chroma (4:2:0) or
+ * keep it (4:4:4), compute Huffman tables optimized for the image (two
+ * passes) and write progressive JPEGs.
+ *
+ * Pixels are passed as rows of ARGB ints (alpha is ignored), in strips of
+ * any height, so the crop pipeline can hand over a strip at a time:
+ *
+ * <pre>
+ * JpegEncoder encoder = new JpegEncoder(out, width, height, 90);
+ * encoder.setProgressive(true);
+ * for (int y = 0; y &lt; height; y += strip) {
+ *     bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+ *     encoder.writeRows(pixels, 0, width, rows);
+ * }
+ * encoder.finish();
+ * </pre>
+ *
+ * A baseline JPEG with the standard tables is entropy coded as the rows
+ * arrive and only keeps one MCU row in memory. Optimized tables and
+ * progressive scans need the whole image: its quantized coefficients are
+ * kept (two bytes per sample, 3 bytes per pixel with 4:2:0) and coded in
+ * finish().
+ *
+ * With {@link #setThreads(int)} the image is cut into restart intervals which
+ * are encoded on worker threads, see there.
+ */
+public final class JpegEncoder {
+
+    public static final int SUBSAMPLING_420 = 0;
+    public static final int SUBSAMPLING_444 = 1;
+
+    // Natural (row major) index of the coefficient at each zigzag position.
+    static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    // Quantization tables of the JPEG standard (Annex K.1), natural order.
+    private static final int[] LUMINANCE_QUANTIZATION = {
+        16,  11,  10,  16,  24,  40,  51,  61,
+        12,  12,  14,  19,  26,  58,  60,  55,
+        14,  13,  16,  24,  40,  57,  69,  56,
+        14,  17,  22,  29,  51,  87,  80,  62,
+        18,  22,  37,  56,  68, 109, 103,  77,
+        24,  35,  55,  64,  81, 104, 113,  92,
+        49,  64,  78,  87, 103, 121, 120, 101,
+        72,  92,  95,  98, 112, 100, 103,  99,
+    };
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+        17,  18,  24,  47,  99,  99,  99,  99,
+        18,  21,  26,  66,  99,  99,  99,  99,
+        24,  26,  56,  99,  99,  99,  99,  99,
+        47,  66,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+    };
+
+    // Huffman tables of the JPEG standard (Annex K.3): code counts per
+    // length 1-16, then the symbols.
+    private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_LUMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] DC_CHROMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] AC_LUMINANCE_VALUES = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+        0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+        0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+        0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+        0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa,
+    };
+    private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] AC_CHROMINANCE_VALUES = {
+        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+        0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+        0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+        0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+        0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+        0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+        0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+        0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+        0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa,
+    };
+
+    // Scan script for progressive output (the one of libjpeg's
+    // jpeg_simple_progression): component (-1 for all), Ss, Se, Ah, Al.
+    // DC and the low frequencies come first and at reduced precision, the
+    // refinement scans add the last bits.
+    private static final int[][] PROGRESSIVE_SCANS = {
+        { -1, 0,  0, 0, 1 },
+        {  0, 1,  5, 0, 2 },
+        {  2, 1, 63, 0, 1 },
+        {  1, 1, 63, 0, 1 },
+        {  0, 6, 63, 0, 2 },
+        {  0, 1, 63, 2, 1 },
+        { -1, 0,  0, 1, 0 },
+        {  2, 1, 63, 1, 0 },
+        {  1, 1, 63, 1, 0 },
+        {  0, 1, 63, 1, 0 },
+    };
+
+    // Scale factors of the AAN DCT, see fdctQuantize().
+    private static final float[] AAN_SCALE = {
+        1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+        1.0f, 0.785694958f, 0.541196100f, 0.275899379f,
+    };
+
+    // Huffman table slots: DC luminance/chrominance, AC luminance/chrominance.
+    private static final int DC_TABLES = 0, AC_TABLES = 2, TABLE_COUNT = 4;
+
+    private static final int MAX_EOB_RUN = 0x7FFF;
+    private static final int MAX_CORRECTION_BITS = 1000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Largest strip of pixels buffered per restart segment.
+    private static final int MAX_SEGMENT_PIXELS = 1 << 20;
+
+    private final OutputStream mOut;
+    private final int mWidth, mHeight, mQuality;
+
+    private int mSubsampling = SUBSAMPLING_420;
+    private boolean mOptimize, mProgressive;
+    private int mThreads = 1;
+    private boolean mStarted, mFinished;
+
+    // layout: sampling factors, MCU and block counts per component
+    private final int[] mH = new int[3], mV = new int[3];
+    private int mHMax, mVMax, mMcusX, mMcusY, mPaddedWidth;
+    private final int[] mBlocksX = new int[3];
+    private final int[] mScanBlocksX = new int[3], mScanBlocksY = new int[3];
+
+    private final int[][] mQuantization = new int[2][];
+    private final float[][] mDivisors = new float[2][64];
+
+    // Huffman codes per table slot, shared by all coders
+    private final int[][] mCodes = new int[TABLE_COUNT][256];
+    private final int[][] mCodeSizes = new int[TABLE_COUNT][256];
+
+    // parameters of the current scan
+    private int mSs, mSe, mAh, mAl;
+
+    private Coder mCoder;
+    private Transformer mTransformer;
+    private int mRowsWritten, mMcuRow;
+
+    // quantized coefficients in zigzag order: the whole image if they're
+    // needed after the last row, otherwise one MCU row
+    private short[][] mCoefficients;
+
+    // restart segments coded on worker threads
+    private ExecutorService mExecutor;
+    private int mSegmentRows, mSegmentCount;
+    private int[] mSegmentPixels;
+    private int mSegmentPixelRows;
+    private final LinkedList<Future<Segment>> mPending = new LinkedList<Future<Segment>>();
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final LinkedList<int[]> mFreePixels = new LinkedList<int[]>();
+
+    /**
+     * @param quality 1-100, scales the standard quantization tables like libjpeg
+     */
+    public JpegEncoder(OutputStream out, int width, int height, int quality) {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+            throw new IllegalArgumentException("invalid size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mQuality = Math.max(1, Math.min(100, quality));
+    }
+
+    /** {@link #SUBSAMPLING_420} (the default) or {@link #SUBSAMPLING_444}. */
+    public void setSubsampling(int subsampling) {
+        checkNotStarted();
+        if (subsampling != SUBSAMPLING_420 && subsampling != SUBSAMPLING_444) {
+            throw new IllegalArgumentException("invalid subsampling " + subsampling);
+        }
+        mSubsampling = subsampling;
+    }
+
+    /** Computes Huffman tables for the image instead of the standard ones. */
+    public void setOptimizeHuffman(boolean optimize) {
+        checkNotStarted();
+        mOptimize = optimize;
+    }
+
+    /** Writes a progressive JPEG, which always uses optimized tables. */
+    public void setProgressive(boolean progressive) {
+        checkNotStarted();
+        mProgressive = progressive;
+    }
+
+    /**
+     * Encodes on several threads (default 1). The image is split into
+     * restart intervals of whole MCU rows which are transformed and coded
+     * independently and joined with RST markers. Progressive scans can't be
+     * split that way, only their transform runs in parallel.
+     */
+    public void setThreads(int threads) {
+        checkNotStarted();
+        mThreads = Math.max(1, threads);
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) throw new IllegalStateException("already started");
+    }
+
+    // Whether the coefficients are only needed until their MCU row is coded.
+    private boolean isStreaming() {
+        return !mOptimize && !mProgressive;
+    }
+
+    private boolean isParallel() {
+        return mExecutor != null;
+    }
+
+    /**
+     * Adds the next rows of the image.
+     *
+     * @param argb pixels, the first row at offset, the next one stride ints later
+     */
+    public void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+        if (mFinished) throw new IllegalStateException("already finished");
+        if (mRowsWritten + rows > mHeight) {
+            throw new IllegalArgumentException("more than " + mHeight + " rows");
+        }
+        if (!mStarted) start();
+
+        try {
+            for (int row = 0; row < rows; row++) {
+                int src = offset + row * stride;
+                mRowsWritten++;
+                if (isParallel()) {
+                    System.arraycopy(argb, src, mSegmentPixels, mSegmentPixelRows * mWidth, mWidth);
+                    if (++mSegmentPixelRows == mSegmentRows * mVMax * 8) {
+                        submitSegment();
+                    }
+                } else {
+                    mTransformer.addRow(argb, src);
+                    if (mTransformer.isFull()) {
+                        transformBand();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        } catch (RuntimeException e) {
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the rest of the JPEG once all rows are added. Doesn't close the
+     * output stream.
+     */
+    public void finish() throws IOException {
+        if (mFinished) return;
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException(mRowsWritten + " of " + mHeight + " rows written");
+        }
+        try {
+            if (isParallel()) {
+                if (mSegmentPixelRows > 0) {
+                    submitSegment();
+                }
+                drain(0);
+            } else if (mTransformer.hasRows()) {
+                transformBand();
+            }
+
+            if (isStreaming()) {
+                mCoder.flushBits();
+            } else if (mProgressive) {
+                writeHeaders();
+                for (int[] scan : PROGRESSIVE_SCANS) {
+                    int[] components = scan[0] < 0 ? new int[] { 0, 1, 2 } : new int[] { scan[0] };
+                    writeScan(components, scan[1], scan[2], scan[3], scan[4]);
+                }
+            } else if (isParallel()) {
+                writeParallelScan();
+            } else {
+                writeHeaders();
+                writeScan(new int[] { 0, 1, 2 }, 0, 63, 0, 0);
+            }
+            mCoder.writeMarker(0xD9); // EOI
+            mCoder.flushBuffer();
+        } finally {
+            shutdown();
+            mFinished = true;
+            mCoefficients = null;
+            mTransformer = null;
+            mSegments.clear();
+            mFreePixels.clear();
+            mSegmentPixels = null;
+        }
+    }
+
+    private void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private void start() throws IOException {
+        mStarted = true;
+        if (mProgressive) mOptimize = true;
+
+        mHMax = mVMax = mSubsampling == SUBSAMPLING_420 ? 2 : 1;
+        mH[0] = mV[0] = mHMax;
+        mH[1] = mV[1] = mH[2] = mV[2] = 1;
+        mMcusX = (mWidth + 8 * mHMax - 1) / (8 * mHMax);
+        mMcusY = (mHeight + 8 * mVMax - 1) / (8 * mVMax);
+        mPaddedWidth = mMcusX * 8 * mHMax;
+
+        for (int c = 0; c < 3; c++) {
+            mBlocksX[c] = mMcusX * mH[c];
+            // a scan of a single component only covers its real size
+            int width = (mWidth * mH[c] + mHMax - 1) / mHMax;
+            int height = (mHeight * mV[c] + mVMax - 1) / mVMax;
+            mScanBlocksX[c] = (width + 7) / 8;
+            mScanBlocksY[c] = (height + 7) / 8;
+        }
+
+        mQuantization[0] = scaleQuantization(LUMINANCE_QUANTIZATION, mQuality);
+        mQuantization[1] = scaleQuantization(CHROMINANCE_QUANTIZATION, mQuality);
+        for (int t = 0; t < 2; t++) {
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    mDivisors[t][row * 8 + col] = 1f
+                            / (mQuantization[t][row * 8 + col] * AAN_SCALE[row] * AAN_SCALE[col] * 8f);
+                }
+            }
+        }
+
+        mCoder = new Coder(mOut);
+        if (mThreads > 1 && mMcusY > 1) {
+            // several segments per thread to balance the load, but few
+            // enough pixels to keep the buffered strips small
+            int rows = (mMcusY + mThreads * 4 - 1) / (mThreads * 4);
+            rows = Math.min(rows, MAX_SEGMENT_PIXELS / (mWidth * mVMax * 8));
+            // the restart interval is a 16 bit number of MCUs
+            rows = Math.min(rows, 65535 / mMcusX);
+            mSegmentRows = Math.max(1, rows);
+            mSegmentPixels = new int[mWidth * mSegmentRows * mVMax * 8];
+            mExecutor = Executors.newFixedThreadPool(mThreads);
+        } else {
+            mTransformer = new Transformer();
+        }
+
+        if (isStreaming()) {
+            if (!isParallel()) {
+                mCoefficients = allocateCoefficients(1);
+            }
+            writeHeaders();
+            if (isParallel()) {
+                writeRestartInterval();
+            }
+            writeScanHeader(new int[] { 0, 1, 2 }, 0, 63, 0, 0);
+        } else {
+            mCoefficients = allocateCoefficients(mMcusY);
+        }
+    }
+
+    private short[][] allocateCoefficients(int mcuRows) {
+        short[][] coefficients = new short[3][];
+        for (int c = 0; c < 3; c++) {
+            coefficients[c] = new short[mBlocksX[c] * mcuRows * mV[c] * 64];
+        }
+        return coefficients;
+    }
+
+    // libjpeg's quality scaling of the standard tables
+    static int[] scaleQuantization(int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; i++) {
+            scaled[i] = Math.max(1, Math.min(255, (table[i] * scale + 50) / 100));
+        }
+        return scaled;
+    }
+
+    private void transformBand() throws IOException {
+        if (isStreaming()) {
+            mTransformer.transform(mCoefficients, 0);
+            mCoder.encodeMcuRows(mCoefficients, 0, 1);
+        } else {
+            mTransformer.transform(mCoefficients, mMcuRow);
+        }
+        mMcuRow++;
+    }
+
+    // A restart interval: its rows, and once coded its bytes.
+    private static class Segment {
+        final int index, firstRow, rows;
+        int[] pixels;
+        int[][] frequencies;
+        ByteArrayOutputStream data;
+
+        Segment(int index, int firstRow, int rows, int[] pixels) {
+            this.index = index;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.pixels = pixels;
+        }
+    }
+
+    private void submitSegment() throws IOException {
+        final int index = mSegmentCount++;
+        final int firstRow = index * mSegmentRows;
+        final int pixelRows = mSegmentPixelRows;
+        final Segment segment = new Segment(index, firstRow,
+                Math.min(mSegmentRows, mMcusY - firstRow), mSegmentPixels);
+
+        mPending.add(mExecutor.submit(new Callable<Segment>() {
+            public Segment call() throws IOException {
+                return processSegment(segment, pixelRows);
+            }
+        }));
+        // bound the number of buffered strips
+        drain(2 * mThreads - 1);
+
+        mSegmentPixels = mFreePixels.isEmpty()
+                ? new int[segment.pixels.length] : mFreePixels.removeFirst();
+        mSegmentPixelRows = 0;
+    }
+
+    // Runs on a worker: transforms the strip and codes or counts it.
+    private Segment processSegment(Segment segment, int pixelRows) throws IOException {
+        Transformer transformer = new Transformer();
+        short[][] coefficients = isStreaming() ? allocateCoefficients(segment.rows) : mCoefficients;
+        int storageRow = isStreaming() ? 0 : segment.firstRow;
+        for (int y = 0; y < pixelRows; y++) {
+            transformer.addRow(segment.pixels, y * mWidth);
+            if (transformer.isFull()) {
+                transformer.transform(coefficients, storageRow++);
+            }
+        }
+        if (transformer.hasRows()) {
+            transformer.transform(coefficients, storageRow);
+        }
+
+        if (isStreaming()) {
+            encodeSegment(segment, coefficients, 0);
+        } else if (!mProgressive) {
+            Coder counter = new Coder(null);
+            counter.mCounting = true;
+            counter.encodeMcuRows(coefficients, segment.firstRow, segment.rows);
+            segment.frequencies = counter.mFrequencies;
+        }
+        return segment;
+    }
+
+    private void encodeSegment(Segment segment, short[][] coefficients, int firstRow)
+            throws IOException {
+        segment.data = new ByteArrayOutputStream();
+        Coder coder = new Coder(segment.data);
+        coder.encodeMcuRows(coefficients, firstRow, segment.rows);
+        coder.flushBits();
+        coder.flushBuffer();
+    }
+
+    // Waits for the oldest segments until at most limit are pending.
+    private void drain(int limit) throws IOException {
+        while (mPending.size() > limit) {
+            Segment segment = await(mPending.removeFirst());
+            mFreePixels.add(segment.pixels);
+            segment.pixels = null;
+            if (isStreaming()) {
+                writeSegment(segment);
+            } else {
+                mSegments.add(segment);
+            }
+        }
+    }
+
+    private static Segment await(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(String.valueOf(cause));
+        }
+    }
+
+    // Appends a coded segment, preceded by the marker ending the previous one.
+    private void writeSegment(Segment segment) throws IOException {
+        if (segment.index > 0) {
+            mCoder.writeMarker(0xD0 + ((segment.index - 1) & 7)); // RSTn
+        }
+        mCoder.flushBuffer();
+        segment.data.writeTo(mOut);
+        segment.data = null;
+    }
+
+    // The sequential scan with optimized tables counted by the segments.
+    private void writeParallelScan() throws IOException {
+        int[][] frequencies = new int[TABLE_COUNT][257];
+        for (Segment segment : mSegments) {
+            for (int t = 0; t < TABLE_COUNT; t++) {
+                for (int s = 0; s < 257; s++) {
+                    frequencies[t][s] += segment.frequencies[t][s];
+                }
+            }
+            segment.frequencies = null;
+        }
+
+        writeHeaders();
+        writeOptimalTables(frequencies);
+        writeRestartInterval();
+        writeScanHeader(new int[] { 0, 1, 2 }, 0, 63, 0, 0);
+
+        List<Future<Segment>> futures = new ArrayList<Future<Segment>>(mSegments.size());
+        for (final Segment segment : mSegments) {
+            futures.add(mExecutor.submit(new Callable<Segment>() {
+                public Segment call() throws IOException {
+                    encodeSegment(segment, mCoefficients, segment.firstRow);
+                    return segment;
+                }
+            }));
+        }
+        for (Future<Segment> future : futures) {
+            writeSegment(await(future));
+        }
+    }
+
+    private void writeRestartInterval() throws IOException {
+        mCoder.writeMarker(0xDD); // DRI
+        mCoder.writeShort(4);
+        mCoder.writeShort(mMcusX * mSegmentRows);
+    }
+
+    /**
+     * Forward DCT of a block (the AAN algorithm, like libjpeg's jfdctflt)
+     * followed by quantization. The output scaling of the AAN DCT is folded
+     * into the divisors.
+     */
+    static void fdctQuantize(float[] data, float[] divisors, short[] out, int offset) {
+        for (int i = 0; i < 64; i += 8) {
+            transform(data, i, 1);
+        }
+        for (int i = 0; i < 8; i++) {
+            transform(data, i, 8);
+        }
+        for (int k = 0; k < 64; k++) {
+            int n = ZIGZAG[k];
+            // round half away from zero, AC limited to the 10 bits baseline allows
+            int value = (int) (data[n] * divisors[n] + 16384.5f) - 16384;
+            if (k > 0) {
+                value = Math.max(-1023, Math.min(1023, value));
+            }
+            out[offset + k] = (short) value;
+        }
+    }
+
+    private static void transform(float[] d, int o, int s) {
+        float tmp0 = d[o] + d[o + 7 * s];
+        float tmp7 = d[o] - d[o + 7 * s];
+        float tmp1 = d[o + s] + d[o + 6 * s];
+        float tmp6 = d[o + s] - d[o + 6 * s];
+        float tmp2 = d[o + 2 * s] + d[o + 5 * s];
+        float tmp5 = d[o + 2 * s] - d[o + 5 * s];
+        float tmp3 = d[o + 3 * s] + d[o + 4 * s];
+        float tmp4 = d[o + 3 * s] - d[o + 4 * s];
+
+        // even part
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+
+        d[o] = tmp10 + tmp11;
+        d[o + 4 * s] = tmp10 - tmp11;
+
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[o + 2 * s] = tmp13 + z1;
+        d[o + 6 * s] = tmp13 - z1;
+
+        // odd part
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+
+        d[o + 5 * s] = z13 + z2;
+        d[o + 3 * s] = z13 - z2;
+        d[o + s] = z11 + z4;
+        d[o + 7 * s] = z11 - z4;
+    }
+
+    private void writeHeaders() throws IOException {
+        final Coder out = mCoder;
+        out.writeMarker(0xD8); // SOI
+
+        // JFIF APP0, no density, no thumbnail
+        out.writeMarker(0xE0);
+        out.writeShort(16);
+        out.writeByte('J'); out.writeByte('F'); out.writeByte('I'); out.writeByte('F'); out.writeByte(0);
+        out.writeByte(1); out.writeByte(1);
+        out.writeByte(0);
+        out.writeShort(1); out.writeShort(1);
+        out.writeByte(0); out.writeByte(0);
+
+        out.writeMarker(0xDB); // DQT
+        out.writeShort(2 + 2 * 65);
+        for (int t = 0; t < 2; t++) {
+            out.writeByte(t);
+            for (int k = 0; k < 64; k++) {
+                out.writeByte(mQuantization[t][ZIGZAG[k]]);
+            }
+        }
+
+        out.writeMarker(mProgressive ? 0xC2 : 0xC0); // SOF2 / SOF0
+        out.writeShort(8 + 3 * 3);
+        out.writeByte(8);
+        out.writeShort(mHeight);
+        out.writeShort(mWidth);
+        out.writeByte(3);
+        for (int c = 0; c < 3; c++) {
+            out.writeByte(c + 1);
+            out.writeByte((mH[c] << 4) | mV[c]);
+            out.writeByte(c == 0 ? 0 : 1);
+        }
+
+        if (!mOptimize) {
+            setTable(DC_TABLES, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+            setTable(DC_TABLES + 1, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+            setTable(AC_TABLES, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+            setTable(AC_TABLES + 1, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+            writeTable(DC_TABLES, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+            writeTable(DC_TABLES + 1, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+            writeTable(AC_TABLES, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+            writeTable(AC_TABLES + 1, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+        }
+    }
+
+    // Writes one scan of the buffered coefficients; with optimized tables
+    // the scan is run twice, first counting the symbols.
+    private void writeScan(int[] components, int ss, int se, int ah, int al) throws IOException {
+        mSs = ss;
+        mSe = se;
+        mAh = ah;
+        mAl = al;
+
+        boolean dcRefinement = ss == 0 && ah != 0;
+        if (mOptimize && !dcRefinement) {
+            Coder counter = new Coder(null);
+            counter.mCounting = true;
+            counter.encodeScan(components);
+            writeOptimalTables(counter.mFrequencies);
+        }
+
+        writeScanHeader(components, ss, se, ah, al);
+        mCoder.encodeScan(components);
+        mCoder.flushBits();
+    }
+
+    private void writeOptimalTables(int[][] frequencies) throws IOException {
+        for (int t = 0; t < TABLE_COUNT; t++) {
+            if (isUsed(frequencies[t])) {
+                int[][] table = optimalTable(frequencies[t]);
+                setTable(t, table[0], table[1]);
+                writeTable(t, table[0], table[1]);
+            }
+        }
+    }
+
+    private static boolean isUsed(int[] frequencies) {
+        for (int frequency : frequencies) {
+            if (frequency != 0) return true;
+        }
+        return false;
+    }
+
+    private void writeScanHeader(int[] components, int ss, int se, int ah, int al) throws IOException {
+        final Coder out = mCoder;
+        out.writeMarker(0xDA); // SOS
+        out.writeShort(6 + 2 * components.length);
+        out.writeByte(components.length);
+        for (int c : components) {
+            out.writeByte(c + 1);
+            int table = c == 0 ? 0 : 1;
+            // DC scans only use DC tables, AC scans only AC tables
+            out.writeByte(ss == 0 ? table << 4 | (se > 0 ? table : 0) : table);
+        }
+        out.writeByte(ss);
+        out.writeByte(se);
+        out.writeByte((ah << 4) | al);
+    }
+
+    /**
+     * Builds a length limited Huffman table from symbol frequencies, like
+     * libjpeg's jpeg_gen_optimal_table (JPEG Annex K.2). Returns the code
+     * counts per length 1-16 and the symbols ordered by code length.
+     */
+    static int[][] optimalTable(int[] symbolFrequencies) {
+        final long[] frequencies = new long[257];
+        for (int i = 0; i < 256; i++) {
+            frequencies[i] = symbolFrequencies[i];
+        }
+        // a pseudo symbol which makes sure no code is all ones
+        frequencies[256] = 1;
+
+        final int[] codeSize = new int[257];
+        final int[] others = new int[257];
+        Arrays.fill(others, -1);
+
+        while (true) {
+            // the two least frequent, the larger symbol on ties
+            int c1 = -1, c2 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (frequencies[i] != 0 && frequencies[i] <= v) {
+                    v = frequencies[i];
+                    c1 = i;
+                }
+            }
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (frequencies[i] != 0 && frequencies[i] <= v && i != c1) {
+                    v = frequencies[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0) break;
+
+            frequencies[c1] += frequencies[c2];
+            frequencies[c2] = 0;
+
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        final int[] bits = new int[258];
+        for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] > 0) {
+                bits[codeSize[i]]++;
+            }
+        }
+
+        // limit the code lengths to 16 bits
+        for (int i = bits.length - 1; i > 16; i--) {
+            while (bits[i] > 0) {
+                int j = i - 2;
+                while (bits[j] == 0) j--;
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+        // remove the pseudo symbol, it has the longest code
+        int longest = 16;
+        while (bits[longest] == 0) longest--;
+        bits[longest]--;
+
+        int[] counts = new int[16];
+        int total = 0;
+        for (int i = 0; i < 16; i++) {
+            counts[i] = bits[i + 1];
+            total += counts[i];
+        }
+        int[] values = new int[total];
+        int n = 0;
+        for (int length = 1; length < codeSize.length && n < total; length++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (codeSize[symbol] == length) {
+                    values[n++] = symbol;
+                }
+            }
+        }
+        return new int[][] { counts, values };
+    }
+
+    // Derives the codes of a table (JPEG Annex C).
+    private void setTable(int table, int[] counts, int[] values) {
+        final int[] codes = mCodes[table], sizes = mCodeSizes[table];
+        Arrays.fill(sizes, 0);
+        int code = 0, n = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < counts[length - 1]; i++) {
+                codes[values[n]] = code++;
+                sizes[values[n]] = length;
+                n++;
+            }
+            code <<= 1;
+        }
+    }
+
+    private void writeTable(int table, int[] counts, int[] values) throws IOException {
+        final Coder out = mCoder;
+        out.writeMarker(0xC4); // DHT
+        out.writeShort(2 + 1 + 16 + values.length);
+        int tableClass = table >= AC_TABLES ? 1 : 0;
+        out.writeByte((tableClass << 4) | (table - (tableClass == 1 ? AC_TABLES : DC_TABLES)));
+        for (int count : counts) {
+            out.writeByte(count);
+        }
+        for (int value : values) {
+            out.writeByte(value);
+        }
+    }
+
+    /**
+     * Collects rows into a strip of one MCU row, converts them to level
+     * shifted Y, Cb and Cr and transforms the strip into coefficients.
+     */
+    private final class Transformer {
+        private final float[][] mBand = new float[3][mPaddedWidth * mVMax * 8];
+        private final float[] mDownsampled = new float[mPaddedWidth * mVMax * 8 / (mHMax * mVMax)];
+        private final float[] mBlock = new float[64];
+        private int mRows;
+
+        boolean isFull() {
+            return mRows == mVMax * 8;
+        }
+
+        boolean hasRows() {
+            return mRows > 0;
+        }
+
+        void addRow(int[] argb, int src) {
+            final float[] y = mBand[0], cb = mBand[1], cr = mBand[2];
+            int dst = mRows * mPaddedWidth;
+            for (int x = 0; x < mWidth; x++, dst++) {
+                int pixel = argb[src + x];
+                int r = (pixel >> 16) & 0xFF, g = (pixel >> 8) & 0xFF, b = pixel & 0xFF;
+                y[dst] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                cb[dst] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                cr[dst] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+            // replicate the last column into the padding
+            for (int x = mWidth; x < mPaddedWidth; x++, dst++) {
+                y[dst] = y[dst - 1];
+                cb[dst] = cb[dst - 1];
+                cr[dst] = cr[dst - 1];
+            }
+            mRows++;
+        }
+
+        // Transforms the strip into the given MCU row of coefficients.
+        void transform(short[][] coefficients, int storageRow) {
+            final int bandHeight = mVMax * 8;
+            // replicate the last row of the image into the padding
+            for (int row = mRows; row < bandHeight; row++) {
+                for (float[] plane : mBand) {
+                    System.arraycopy(plane, (mRows - 1) * mPaddedWidth, plane, row * mPaddedWidth, mPaddedWidth);
+                }
+            }
+
+            for (int c = 0; c < 3; c++) {
+                float[] plane = mBand[c];
+                int planeWidth = mPaddedWidth;
+                if (mH[c] != mHMax || mV[c] != mVMax) {
+                    plane = downsample(mBand[c]);
+                    planeWidth = mPaddedWidth / 2;
+                }
+                final float[] divisors = mDivisors[c == 0 ? 0 : 1];
+                for (int by = 0; by < mV[c]; by++) {
+                    for (int bx = 0; bx < mBlocksX[c]; bx++) {
+                        int src = by * 8 * planeWidth + bx * 8;
+                        for (int row = 0; row < 8; row++) {
+                            System.arraycopy(plane, src + row * planeWidth, mBlock, row * 8, 8);
+                        }
+                        int block = (storageRow * mV[c] + by) * mBlocksX[c] + bx;
+                        fdctQuantize(mBlock, divisors, coefficients[c], block * 64);
+                    }
+                }
+            }
+            mRows = 0;
+        }
+
+        // 2x2 box filter for the 4:2:0 chroma
+        private float[] downsample(float[] plane) {
+            final int width = mPaddedWidth / 2, height = mVMax * 4;
+            final float[] out = mDownsampled;
+            for (int y = 0; y < height; y++) {
+                int top = 2 * y * mPaddedWidth, bottom = top + mPaddedWidth;
+                for (int x = 0; x < width; x++) {
+                    int i = 2 * x;
+                    out[y * width + x] = (plane[top + i] + plane[top + i + 1]
+                            + plane[bottom + i] + plane[bottom + i + 1]) * 0.25f;
+                }
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Entropy codes blocks into its own output, or only counts the symbols
+     * for optimized tables. One per scan or restart segment.
+     */
+    private final class Coder {
+        private final OutputStream mSink;
+        private final byte[] mBuffer;
+        private int mLength;
+
+        boolean mCounting;
+        final int[][] mFrequencies = new int[TABLE_COUNT][257];
+
+        private final int[] mLastDc = new int[3];
+        private int mEobRun, mCorrectionBitCount;
+        private final byte[] mCorrectionBits = new byte[MAX_CORRECTION_BITS];
+        private final int[] mAbsolute = new int[64];
+        private int mPutBuffer, mPutBits;
+
+        Coder(OutputStream sink) {
+            mSink = sink;
+            mBuffer = sink != null ? new byte[BUFFER_SIZE] : null;
+        }
+
+        void encodeScan(int[] components) throws IOException {
+            mLastDc[0] = mLastDc[1] = mLastDc[2] = 0;
+            mEobRun = 0;
+            mCorrectionBitCount = 0;
+
+            if (components.length > 1) {
+                encodeMcuRows(mCoefficients, 0, mMcusY);
+            } else {
+                // non interleaved: the component's blocks in raster order
+                final int c = components[0];
+                for (int by = 0; by < mScanBlocksY[c]; by++) {
+                    for (int bx = 0; bx < mScanBlocksX[c]; bx++) {
+                        encodeBlock(c, mCoefficients[c], (by * mBlocksX[c] + bx) * 64);
+                    }
+                }
+            }
+            if (mSs > 0) {
+                emitEobRun(components[0]);
+            }
+        }
+
+        void encodeMcuRows(short[][] coefficients, int firstRow, int rows) throws IOException {
+            for (int mcuRow = firstRow; mcuRow < firstRow + rows; mcuRow++) {
+                for (int mcuX = 0; mcuX < mMcusX; mcuX++) {
+                    for (int c = 0; c < 3; c++) {
+                        for (int v = 0; v < mV[c]; v++) {
+                            for (int h = 0; h < mH[c]; h++) {
+                                int block = (mcuRow * mV[c] + v) * mBlocksX[c] + mcuX * mH[c] + h;
+                                encodeBlock(c, coefficients[c], block * 64);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void encodeBlock(int c, short[] coefficients, int offset) throws IOException {
+            if (!mProgressive) {
+                encodeSequential(c, coefficients, offset);
+            } else if (mSs == 0) {
+                if (mAh == 0) {
+                    encodeDcFirst(c, coefficients, offset);
+                } else {
+                    // DC refinement: the next bit, uncoded
+                    emitBits((coefficients[offset] >> mAl) & 1, 1);
+                }
+            } else if (mAh == 0) {
+                encodeAcFirst(c, coefficients, offset);
+            } else {
+                encodeAcRefinement(c, coefficients, offset);
+            }
+        }
+
+        private void encodeSequential(int c, short[] coefficients, int offset) throws IOException {
+            final int dcTable = DC_TABLES + (c == 0 ? 0 : 1);
+            final int acTable = AC_TABLES + (c == 0 ? 0 : 1);
+
+            int dc = coefficients[offset];
+            emitValue(dcTable, 0, dc - mLastDc[c]);
+            mLastDc[c] = dc;
+
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int value = coefficients[offset + k];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    emitSymbol(acTable, 0xF0);
+                    run -= 16;
+                }
+                emitValue(acTable, run, value);
+                run = 0;
+            }
+            if (run > 0) {
+                emitSymbol(acTable, 0x00); // EOB
+            }
+        }
+
+        private void encodeDcFirst(int c, short[] coefficients, int offset) throws IOException {
+            int dc = coefficients[offset] >> mAl;
+            emitValue(DC_TABLES + (c == 0 ? 0 : 1), 0, dc - mLastDc[c]);
+            mLastDc[c] = dc;
+        }
+
+        private void encodeAcFirst(int c, short[] coefficients, int offset) throws IOException {
+            final int acTable = AC_TABLES + (c == 0 ? 0 : 1);
+            int run = 0;
+            for (int k = mSs; k <= mSe; k++) {
+                int value = coefficients[offset + k];
+                // point transform of the magnitude
+                int magnitude = (value < 0 ? -value : value) >> mAl;
+                if (magnitude == 0) {
+                    run++;
+                    continue;
+                }
+                emitEobRun(c);
+                while (run > 15) {
+                    emitSymbol(acTable, 0xF0);
+                    run -= 16;
+                }
+                emitValue(acTable, run, value < 0 ? -magnitude : magnitude);
+                run = 0;
+            }
+            if (run > 0 && ++mEobRun == MAX_EOB_RUN) {
+                emitEobRun(c);
+            }
+        }
+
+        private void encodeAcRefinement(int c, short[] coefficients, int offset) throws IOException {
+            final int acTable = AC_TABLES + (c == 0 ? 0 : 1);
+            final int[] absolute = mAbsolute;
+
+            // the last coefficient which becomes nonzero in this scan
+            int eob = 0;
+            for (int k = mSs; k <= mSe; k++) {
+                int value = coefficients[offset + k];
+                absolute[k] = (value < 0 ? -value : value) >> mAl;
+                if (absolute[k] == 1) eob = k;
+            }
+
+            int run = 0;
+            // correction bits of this block, appended to those of the EOB run
+            int start = mCorrectionBitCount, count = 0;
+            for (int k = mSs; k <= mSe; k++) {
+                int magnitude = absolute[k];
+                if (magnitude == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15 && k <= eob) {
+                    emitEobRun(c);
+                    emitSymbol(acTable, 0xF0);
+                    run -= 16;
+                    emitCorrectionBits(start, count);
+                    start = 0;
+                    count = 0;
+                }
+                if (magnitude > 1) {
+                    // already nonzero: one more bit of it
+                    mCorrectionBits[start + count++] = (byte) (magnitude & 1);
+                    continue;
+                }
+                // newly nonzero: run, size 1 and the sign
+                emitEobRun(c);
+                emitSymbol(acTable, (run << 4) + 1);
+                emitBits(coefficients[offset + k] < 0 ? 0 : 1, 1);
+                emitCorrectionBits(start, count);
+                start = 0;
+                count = 0;
+                run = 0;
+            }
+
+            if (run > 0 || count > 0) {
+                mEobRun++;
+                mCorrectionBitCount = start + count;
+                if (mEobRun == MAX_EOB_RUN || mCorrectionBitCount > MAX_CORRECTION_BITS - 64 + 1) {
+                    emitEobRun(c);
+                }
+            }
+        }
+
+        // Emits the pending run of empty blocks and their correction bits.
+        private void emitEobRun(int c) throws IOException {
+            if (mEobRun > 0) {
+                int bits = 31 - Integer.numberOfLeadingZeros(mEobRun);
+                emitSymbol(AC_TABLES + (c == 0 ? 0 : 1), bits << 4);
+                if (bits > 0) {
+                    emitBits(mEobRun, bits);
+                }
+                mEobRun = 0;
+                emitCorrectionBits(0, mCorrectionBitCount);
+                mCorrectionBitCount = 0;
+            }
+        }
+
+        private void emitCorrectionBits(int start, int count) throws IOException {
+            if (mCounting) return;
+            for (int i = start; i < start + count; i++) {
+                emitBits(mCorrectionBits[i], 1);
+            }
+        }
+
+        // Emits the symbol for (run, size of value) followed by the value's bits.
+        private void emitValue(int table, int run, int value) throws IOException {
+            int magnitude = value < 0 ? -value : value;
+            int size = 32 - Integer.numberOfLeadingZeros(magnitude);
+            emitSymbol(table, (run << 4) + size);
+            if (size > 0) {
+                // negative values are sent as value - 1 in size bits
+                emitBits(value < 0 ? value - 1 : value, size);
+            }
+        }
+
+        private void emitSymbol(int table, int symbol) throws IOException {
+            if (mCounting) {
+                mFrequencies[table][symbol]++;
+                return;
+            }
+            int size = mCodeSizes[table][symbol];
+            if (size == 0) {
+                throw new IllegalStateException("no code for symbol " + symbol + " in table " + table);
+            }
+            emitBits(mCodes[table][symbol], size);
+        }
+
+        private void emitBits(int value, int size) throws IOException {
+            if (mCounting) return;
+            mPutBuffer = (mPutBuffer << size) | (value & ((1 << size) - 1));
+            mPutBits += size;
+            while (mPutBits >= 8) {
+                int b = (mPutBuffer >> (mPutBits - 8)) & 0xFF;
+                writeByte(b);
+                if (b == 0xFF) {
+                    writeByte(0); // byte stuffing
+                }
+                mPutBits -= 8;
+            }
+            mPutBuffer &= (1 << mPutBits) - 1;
+        }
+
+        // Pads the last byte of a scan or segment with 1 bits.
+        void flushBits() throws IOException {
+            if (mPutBits > 0) {
+                emitBits(0x7F, 8 - mPutBits);
+            }
+            mPutBuffer = 0;
+            mPutBits = 0;
+        }
+
+        void writeMarker(int marker) throws IOException {
+            writeByte(0xFF);
+            writeByte(marker);
+        }
+
+        void writeShort(int value) throws IOException {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void writeByte(int value) throws IOException {
+            if (mLength == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        void flushBuffer() throws IOException {
+            mSink.write(mBuffer, 0, mLength);
+            mLength = 0;
+        }
+    }
+}
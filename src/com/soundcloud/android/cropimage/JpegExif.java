@@ -0,0 +1,232 @@
+package com.soundcloud.android.cropimage;
+
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads the EXIF orientation of a JPEG stream, for sources without a file
+ * ExifInterface could open (in-memory buffers, content Uris). Only the
+ * markers before the image data are read. {@link #withRotation} does the
+ * reverse for encoded output, so the tag is part of the stream as written.
+ */
+final class JpegExif {
+
+    private static final int SOI = 0xd8;
+    private static final int EOI = 0xd9;
+    private static final int SOS = 0xda;
+    private static final int APP0 = 0xe0;
+    private static final int APP1 = 0xe1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    /** Bytes {@link #withRotation} adds to a stream. */
+    static final int SEGMENT_LENGTH = 36;
+
+    private JpegExif() {
+    }
+
+    /**
+     * @return the clockwise rotation (0, 90, 180 or 270) which turns the
+     *         image upright, -1 if the stream isn't a JPEG or can't be read
+     */
+    static int getRotation(InputStream in) {
+        try {
+            switch (getOrientation(new DataInputStream(in))) {
+                case 3:
+                    return 180;
+                case 6:
+                    return 90;
+                case 8:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // The orientation tag (1-8), 0 if there is none.
+    private static int getOrientation(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != 0xff || in.readUnsignedByte() != SOI) {
+            throw new IOException("not a JPEG");
+        }
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xff) throw new IOException("bad marker");
+            // fill bytes
+            while (marker == 0xff) marker = in.readUnsignedByte();
+            if (marker == SOS || marker == EOI) return 0;
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) continue;
+
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) throw new IOException("bad segment length");
+            if (marker == APP1 && length >= 14) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (isExif(segment)) return readOrientation(segment, 6);
+            } else {
+                skip(in, length);
+            }
+        }
+    }
+
+    private static boolean isExif(byte[] segment) {
+        return segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+
+    // Looks the tag up in IFD0 of the TIFF structure starting at tiff.
+    private static int readOrientation(byte[] data, int tiff) {
+        boolean little;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            little = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            little = false;
+        } else {
+            return 0;
+        }
+        if (read(data, tiff + 2, 2, little) != 42) return 0;
+        long ifd = tiff + read(data, tiff + 4, 4, little);
+        if (ifd < 0 || ifd + 2 > data.length) return 0;
+
+        int entries = read(data, (int) ifd, 2, little);
+        for (int i = 0; i < entries; i++) {
+            int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > data.length) return 0;
+            if (read(data, entry, 2, little) == TAG_ORIENTATION) {
+                // a SHORT, left-aligned in the value field
+                return read(data, entry + 8, 2, little);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Wraps a stream an encoder writes a JPEG to, adding an Exif segment with
+     * just the orientation tag after SOI (and after a JFIF APP0 segment, which
+     * has to come first).
+     *
+     * @param rotation the clockwise rotation a viewer should apply, 0 to leave
+     *                 the stream untouched
+     */
+    static OutputStream withRotation(OutputStream out, int rotation) {
+        int orientation;
+        switch (rotation) {
+            case 90:
+                orientation = 6;
+                break;
+            case 180:
+                orientation = 3;
+                break;
+            case 270:
+                orientation = 8;
+                break;
+            default:
+                return out;
+        }
+        return new OrientationOutputStream(out, orientation);
+    }
+
+    // APP1 "Exif", big endian TIFF header, IFD0 with one SHORT entry
+    private static byte[] orientationSegment(int orientation) {
+        return new byte[] {
+            (byte) 0xff, (byte) APP1, 0, 34,
+            'E', 'x', 'i', 'f', 0, 0,
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            0, 1,
+            (byte) (TAG_ORIENTATION >> 8), (byte) TAG_ORIENTATION, 0, 3, 0, 0, 0, 1,
+            0, (byte) orientation, 0, 0,
+            0, 0, 0, 0
+        };
+    }
+
+    private static class OrientationOutputStream extends FilterOutputStream {
+        // SOI plus the next marker and its length
+        private final byte[] mHead = new byte[6];
+        private final int mOrientation;
+        private int mHeadLength;
+        private int mPassThrough;
+        private boolean mInserted;
+
+        OrientationOutputStream(OutputStream out, int orientation) {
+            super(out);
+            mOrientation = orientation;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mInserted) {
+                out.write(b);
+            } else if (mPassThrough > 0) {
+                out.write(b);
+                if (--mPassThrough == 0) insert();
+            } else {
+                mHead[mHeadLength++] = (byte) b;
+                if (mHeadLength == mHead.length) writeHead();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mInserted) {
+                out.write(b, off, len);
+            } else {
+                for (int i = 0; i < len; i++) write(b[off + i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mInserted && mPassThrough == 0) {
+                // too short to be a JPEG
+                out.write(mHead, 0, mHeadLength);
+            }
+            super.close();
+        }
+
+        private void writeHead() throws IOException {
+            if ((mHead[0] & 0xff) != 0xff || (mHead[1] & 0xff) != SOI) {
+                out.write(mHead);
+                mInserted = true;
+            } else if ((mHead[2] & 0xff) == 0xff && (mHead[3] & 0xff) == APP0) {
+                out.write(mHead);
+                mPassThrough = (((mHead[4] & 0xff) << 8) | (mHead[5] & 0xff)) - 2;
+                if (mPassThrough <= 0) insert();
+            } else {
+                out.write(mHead, 0, 2);
+                insert();
+                out.write(mHead, 2, 4);
+            }
+        }
+
+        private void insert() throws IOException {
+            out.write(orientationSegment(mOrientation));
+            mInserted = true;
+        }
+    }
+
+    private static int read(byte[] data, int offset, int length, boolean little) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + (little ? length - 1 - i : i)] & 0xff;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                // skipBytes() gives up early on some streams
+                in.readUnsignedByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A crop which is only recorded when the user confirms it and encoded the
+ * first time somebody reads it, so flows which are cancelled later never pay
+ * for the region decode and the encode.
+ *
+ * The request (source, rectangle, rotation and output size) is stored next to
+ * the results of {@link CropResult} and served by {@link CropResultProvider}.
+ * Opening the Uri returns the read end of a pipe the output is streamed into
+ * while it is encoded (with the {@link OutputEncoder} options of the request),
+ * so it can go straight to an upload. The same bytes are
+ * written to a cache file, later opens read that file.
+ */
+class LazyCropOutput {
+
+    private static final String TAG = LazyCropOutput.class.getSimpleName();
+
+    static final String REQUEST_SUFFIX = ".request";
+    static final String OUTPUT_SUFFIX = ".jpg";
+
+    private final Uri mSource;
+    private final Rect mRect;
+    private final int mRotation;
+    private final int mOutWidth, mOutHeight;
+    private final OutputEncoder mEncoder;
+    private final Bitmap.Config mConfig;
+
+    /**
+     * @param rect the crop in the coordinates of the stored (unrotated) source
+     * @param rotation the EXIF rotation, applied to the output
+     * @param outWidth width of the upright output
+     * @param outHeight height of the upright output
+     * @param config the pixel format the crop is decoded in
+     */
+    LazyCropOutput(Uri source, Rect rect, int rotation, int outWidth, int outHeight,
+                   OutputEncoder encoder, Bitmap.Config config) {
+        mSource = source;
+        mRect = rect;
+        mRotation = rotation;
+        mOutWidth = outWidth;
+        mOutHeight = outHeight;
+        mEncoder = encoder;
+        mConfig = config;
+    }
+
+    /**
+     * Stores the request and returns the provider Uri which produces the
+     * output when opened.
+     */
+    Uri record(Context context) throws IOException {
+        File dir = CropResult.getDirectory(context);
+        File request = File.createTempFile("crop", REQUEST_SUFFIX, dir);
+
+        Properties properties = new Properties();
+        properties.setProperty("source", mSource.toString());
+        properties.setProperty("rect", mRect.flattenToString());
+        properties.setProperty("rotation", String.valueOf(mRotation));
+        properties.setProperty("width", String.valueOf(mOutWidth));
+        properties.setProperty("height", String.valueOf(mOutHeight));
+        properties.setProperty("config", mConfig.name());
+        mEncoder.save(properties);
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(request);
+            properties.store(out, null);
+        } catch (IOException e) {
+            request.delete();
+            throw e;
+        } finally {
+            Util.closeSilently(out);
+        }
+        return CropResultProvider.getUri(context, getOutputFile(request).getName());
+    }
+
+    static LazyCropOutput read(File request) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(request);
+        try {
+            properties.load(in);
+        } finally {
+            Util.closeSilently(in);
+        }
+        try {
+            Rect rect = Rect.unflattenFromString(properties.getProperty("rect"));
+            if (rect == null) {
+                throw new IOException("invalid request " + request);
+            }
+            // requests from before the encoder options were recorded are opaque JPEGs
+            String config = properties.getProperty("config");
+            return new LazyCropOutput(Uri.parse(properties.getProperty("source")), rect,
+                    Integer.parseInt(properties.getProperty("rotation")),
+                    Integer.parseInt(properties.getProperty("width")),
+                    Integer.parseInt(properties.getProperty("height")),
+                    OutputEncoder.fromProperties(properties),
+                    config != null ? Bitmap.Config.valueOf(config) : null);
+        } catch (IllegalArgumentException e) {
+            // also NumberFormatException
+            throw new IOException("invalid request " + request);
+        }
+    }
+
+    String getMimeType() {
+        return mEncoder.getMimeType();
+    }
+
+    static File getRequestFile(File output) {
+        String name = output.getName();
+        if (!name.endsWith(OUTPUT_SUFFIX)) return null;
+        return new File(output.getParentFile(),
+                name.substring(0, name.length() - OUTPUT_SUFFIX.length()) + REQUEST_SUFFIX);
+    }
+
+    static File getOutputFile(File request) {
+        String name = request.getName();
+        return new File(request.getParentFile(),
+                name.substring(0, name.length() - REQUEST_SUFFIX.length()) + OUTPUT_SUFFIX);
+    }
+
+    /**
+     * Starts encoding the request into a pipe and returns its read end. The
+     * encoded bytes are cached in output once complete.
+     */
+    static ParcelFileDescriptor open(final Context context, File request, final File output)
+            throws FileNotFoundException {
+        final LazyCropOutput crop;
+        final ParcelFileDescriptor[] pipe;
+        try {
+            crop = read(request);
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+
+        new Thread(new Runnable() {
+            public void run() {
+                crop.encodeTo(context.getContentResolver(), pipe[1], output);
+            }
+        }, TAG).start();
+        return pipe[0];
+    }
+
+    private void encodeTo(ContentResolver resolver, ParcelFileDescriptor sink, File output) {
+        OutputStream pipe = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+        File temp = null;
+        OutputStream cache = null;
+        Bitmap bitmap = null;
+        boolean complete = false;
+        try {
+            // a unique name, two readers may encode at the same time
+            temp = File.createTempFile(output.getName(), ".part", output.getParentFile());
+            cache = new FileOutputStream(temp);
+            bitmap = decode(resolver);
+            TeeOutputStream tee = new TeeOutputStream(pipe, cache);
+            mEncoder.write(bitmap, tee);
+            tee.flush();
+            complete = !tee.mCacheFailed;
+        } catch (IOException e) {
+            Log.e(TAG, "error encoding " + mSource + ": " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "error encoding " + mSource + ": " + e.getMessage(), e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "error encoding " + mSource + ": " + e.getMessage(), e);
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            // closing the pipe signals end of file (or the error) to the reader
+            Util.closeSilently(pipe);
+            Util.closeSilently(cache);
+            if (temp != null && !(complete && temp.renameTo(output))) {
+                temp.delete();
+            }
+        }
+    }
+
+    private Bitmap decode(ContentResolver resolver) throws IOException {
+        CropDecoder.RegionDecoder decoder = null;
+        try {
+            decoder = CropDecoders.newRegionDecoder(resolver, mSource);
+
+            Bitmap.Config config = mConfig != null ? mConfig
+                    : PixelFormatPolicy.forOutput(Bitmap.CompressFormat.JPEG, false,
+                            mOutWidth, mOutHeight, Runtime.getRuntime().maxMemory());
+            return MultiRegionCrop.decodeCrop(decoder, mRect, mRotation,
+                    new int[] { mOutWidth, mOutHeight }, config, new CropSessionMetrics());
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    // Writes to the reader and the cache. A reader which goes away early
+    // doesn't stop the encode, the cache is still completed.
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream mReader, mCache;
+        private boolean mReaderFailed, mCacheFailed;
+
+        TeeOutputStream(OutputStream reader, OutputStream cache) {
+            mReader = reader;
+            mCache = cache;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (!mReaderFailed) {
+                try {
+                    mReader.write(buffer, offset, count);
+                } catch (IOException e) {
+                    mReaderFailed = true;
+                }
+            }
+            try {
+                mCache.write(buffer, offset, count);
+            } catch (IOException e) {
+                mCacheFailed = true;
+                if (mReaderFailed) throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!mReaderFailed) {
+                try {
+                    mReader.flush();
+                } catch (IOException e) {
+                    mReaderFailed = true;
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,15 @@ import java.util.ArrayList;
 
 public class MonitoredActivity extends Activity {
 
+    // ComponentCallbacks2 levels (API 14), onLowMemory() is passed as COMPLETE.
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
     private final ArrayList<LifeCycleListener> mListeners =
             new ArrayList<LifeCycleListener>();
 
@@ -33,7 +42,12 @@ public class MonitoredActivity extends Activity {
         public void onActivityStopped(MonitoredActivity activity);
     }
 
-    public static class LifeCycleAdapter implements LifeCycleListener {
+    // Optional, for LifeCycleListeners which also want memory pressure.
+    public static interface TrimMemoryListener {
+        public void onActivityTrimMemory(MonitoredActivity activity, int level);
+    }
+
+    public static class LifeCycleAdapter implements LifeCycleListener, TrimMemoryListener {
         public void onActivityCreated(MonitoredActivity activity) {
         }
 
@@ -45,6 +59,9 @@ public class MonitoredActivity extends Activity {
 
         public void onActivityStopped(MonitoredActivity activity) {
         }
+
+        public void onActivityTrimMemory(MonitoredActivity activity, int level) {
+        }
     }
 
     public void addLifeCycleListener(LifeCycleListener listener) {
@@ -87,4 +104,20 @@ public class MonitoredActivity extends Activity {
             listener.onActivityStopped(this);
         }
     }
+
+    // ComponentCallbacks2, only called from API 14. Activity's version can't
+    // be called when building against API 10, it only informs fragments.
+    public void onTrimMemory(int level) {
+        for (LifeCycleListener listener : mListeners) {
+            if (listener instanceof TrimMemoryListener) {
+                ((TrimMemoryListener) listener).onActivityTrimMemory(this, level);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
 }
@@ -0,0 +1,307 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.provider.MediaStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Produces several crops of one image from a single decode. The caller passes
+ * an ArrayList of Bundles as the "regions" extra, each holding the usual
+ * aspectX/aspectY/maxX/maxY extras and its own MediaStore.EXTRA_OUTPUT.
+ *
+ * All regions are decoded through one region decoder: if their union is
+ * not much larger than the regions themselves it is decoded once and every
+ * output is cut from it, otherwise each region is decoded separately from the
+ * same decoder, which still saves re-reading and re-indexing the source.
+ */
+class MultiRegionCrop {
+
+    // Decode the union if it covers at most this much more than the regions.
+    private static final float MAX_UNION_OVERHEAD = 1.5F;
+
+    static class Region {
+        final int aspectX, aspectY, maxX, maxY;
+        final Uri output;
+        // UI thread only
+        HighlightView highlightView;
+        // The crop rectangle on the upright preview, captured from the
+        // highlight view on the UI thread before the region is cropped.
+        Rect crop;
+
+        Region(Bundle extras) {
+            this(extras.getInt("aspectX"), extras.getInt("aspectY"),
+                    extras.getInt("maxX"), extras.getInt("maxY"),
+                    (Uri) extras.getParcelable(MediaStore.EXTRA_OUTPUT));
+        }
+
+        Region(int aspectX, int aspectY, int maxX, int maxY, Uri output) {
+            this.aspectX = aspectX;
+            this.aspectY = aspectY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.output = output;
+        }
+
+        // Output size for the region's crop rectangle, {width, height}.
+        int[] getOutputSize(Rect crop) {
+            int[] size = new int[2];
+            CropGeometry.fitOutputSize(crop.width(), crop.height(), maxX, maxY, size);
+            return size;
+        }
+    }
+
+    private MultiRegionCrop() {
+    }
+
+    // Returns the regions requested by the intent, or null for a single crop.
+    static ArrayList<Region> fromExtras(Bundle extras) {
+        if (extras == null) return null;
+        ArrayList<Parcelable> bundles = extras.getParcelableArrayList("regions");
+        if (bundles == null || bundles.isEmpty()) return null;
+
+        ArrayList<Region> regions = new ArrayList<Region>(bundles.size());
+        for (Parcelable bundle : bundles) {
+            regions.add(new Region((Bundle) bundle));
+        }
+        return regions;
+    }
+
+    /**
+     * Decodes all regions of the source through one region decoder session.
+     * The crops are returned upright (the EXIF rotation is applied) and scaled
+     * to each region's output size.
+     *
+     * @param previewSize the size of the preview the crop rectangles are on,
+     *                    {width, height} as stored (unrotated); it may be
+     *                    subsampled from the source
+     * @throws IllegalArgumentException if a rectangle is outside of the image
+     */
+    static Bitmap[] decode(ContentResolver resolver, Uri source, int rotation,
+                           List<Region> regions, int[] previewSize, Bitmap.Config config,
+                           CropSessionMetrics metrics) throws IOException {
+        CropDecoder.RegionDecoder decoder = null;
+        try {
+            decoder = CropDecoders.newRegionDecoder(resolver, source);
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+            final float scaleX = (float) width / previewSize[0];
+            final float scaleY = (float) height / previewSize[1];
+
+            final int count = regions.size();
+            Rect[] rects = new Rect[count];
+            int[][] outSizes = new int[count][];
+            Rect union = null;
+            long area = 0;
+            int sampleSize = Integer.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                Region region = regions.get(i);
+                Rect crop = region.crop;
+                float[] r = { crop.left, crop.top, crop.right, crop.bottom };
+                CropGeometry.unrotate(r, rotation, previewSize[0], previewSize[1]);
+                rects[i] = new Rect(Math.round(r[0] * scaleX), Math.round(r[1] * scaleY),
+                        Math.round(r[2] * scaleX), Math.round(r[3] * scaleY));
+
+                Rect upright = toUpright(rects[i], rotation);
+                outSizes[i] = region.getOutputSize(upright);
+                sampleSize = Math.min(sampleSize, sampleSizeFor(upright, outSizes[i]));
+                area += (long) rects[i].width() * rects[i].height();
+                if (union == null) {
+                    union = new Rect(rects[i]);
+                } else {
+                    union.union(rects[i]);
+                }
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+
+            Bitmap[] crops = new Bitmap[count];
+            if ((long) union.width() * union.height() <= area * MAX_UNION_OVERHEAD) {
+                Bitmap decoded = decodeRegion(decoder, union, options, width, height, metrics);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Rect r = rects[i];
+                        RectF src = new RectF(r.left - union.left, r.top - union.top,
+                                r.right - union.left, r.bottom - union.top);
+                        scale(src, 1F / sampleSize);
+                        crops[i] = extract(decoded, src, rotation, outSizes[i], config, metrics);
+                    }
+                } finally {
+                    metrics.bitmapReleased(decoded);
+                    decoded.recycle();
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    Bitmap decoded = decodeRegion(decoder, rects[i], options, width, height, metrics);
+                    try {
+                        RectF src = new RectF(0, 0, decoded.getWidth(), decoded.getHeight());
+                        crops[i] = extract(decoded, src, rotation, outSizes[i], config, metrics);
+                    } finally {
+                        metrics.bitmapReleased(decoded);
+                        decoded.recycle();
+                    }
+                }
+            }
+            return crops;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Cuts all regions from a bitmap which is already in memory (used when
+     * the source can't be region decoded).
+     */
+    static Bitmap[] crop(RotateBitmap rotateBitmap, List<Region> regions,
+                         Bitmap.Config config, CropSessionMetrics metrics) {
+        final Bitmap bitmap = rotateBitmap.getBitmap();
+        final int rotation = rotateBitmap.getRotation();
+        Bitmap[] crops = new Bitmap[regions.size()];
+        for (int i = 0; i < crops.length; i++) {
+            Region region = regions.get(i);
+            Rect crop = region.crop;
+            float[] r = { crop.left, crop.top, crop.right, crop.bottom };
+            CropGeometry.unrotate(r, rotation, bitmap.getWidth(), bitmap.getHeight());
+            crops[i] = extract(bitmap, new RectF(r[0], r[1], r[2], r[3]), rotation,
+                    region.getOutputSize(crop), config, metrics);
+        }
+        return crops;
+    }
+
+    /**
+     * Size of the largest bitmap decode() or crop() allocates for the
+     * regions, {width, height}: the union decoded at the sample size, or the
+     * largest output when cutting from the preview.
+     *
+     * @param sourceScale source pixels per preview pixel if the regions are
+     *                    decoded from the source, 0 if they are cut from the
+     *                    preview
+     */
+    static int[] getAllocationSize(List<Region> regions, float sourceScale) {
+        Rect union = null;
+        int sampleSize = Integer.MAX_VALUE;
+        int[] largest = { 0, 0 };
+        for (Region region : regions) {
+            Rect crop = region.crop;
+            if (sourceScale > 0) {
+                crop = new Rect(Math.round(crop.left * sourceScale),
+                        Math.round(crop.top * sourceScale),
+                        Math.round(crop.right * sourceScale),
+                        Math.round(crop.bottom * sourceScale));
+            }
+            int[] outSize = region.getOutputSize(crop);
+            sampleSize = Math.min(sampleSize, sampleSizeFor(crop, outSize));
+            if ((long) outSize[0] * outSize[1] > (long) largest[0] * largest[1]) {
+                largest = outSize;
+            }
+            if (union == null) {
+                union = new Rect(crop);
+            } else {
+                union.union(crop);
+            }
+        }
+        if (sourceScale <= 0 || union == null) return largest;
+        return new int[] { union.width() / sampleSize, union.height() / sampleSize };
+    }
+
+    // The size of rect (in stored coordinates) once rotated, at the origin.
+    private static Rect toUpright(Rect rect, int rotation) {
+        return rotation % 180 == 0
+                ? new Rect(0, 0, rect.width(), rect.height())
+                : new Rect(0, 0, rect.height(), rect.width());
+    }
+
+    private static Bitmap decodeRegion(CropDecoder.RegionDecoder decoder, Rect rect,
+                                       BitmapFactory.Options options,
+                                       int width, int height, CropSessionMetrics metrics) {
+        try {
+            metrics.begin(CropSessionMetrics.STAGE_REGION_DECODE);
+            Bitmap decoded = decoder.decodeRegion(rect, options);
+            metrics.end(CropSessionMetrics.STAGE_REGION_DECODE);
+            metrics.bitmapAllocated(decoded);
+            return decoded;
+        } catch (IllegalArgumentException e) {
+            // rethrow with some extra information
+            throw new IllegalArgumentException(
+                    "rectangle " + rect + " is outside of the image (" + width + "," + height + ")", e);
+        }
+    }
+
+    /**
+     * Decodes rect (in the coordinates of the decoder's image) at the largest
+     * subsampling which still yields outSize and returns it rotated and
+     * scaled to outSize.
+     *
+     * @throws IllegalArgumentException if the rectangle is outside of the image
+     */
+    static Bitmap decodeCrop(CropDecoder.RegionDecoder decoder, Rect rect, int rotation,
+                             int[] outSize, Bitmap.Config config, CropSessionMetrics metrics) throws IOException {
+        Rect upright = toUpright(rect, rotation);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(upright, outSize);
+        options.inPreferredConfig = config;
+
+        Bitmap decoded = decodeRegion(decoder, rect, options,
+                decoder.getWidth(), decoder.getHeight(), metrics);
+        if (decoded == null) {
+            throw new IOException("cannot decode " + rect);
+        }
+        try {
+            RectF src = new RectF(0, 0, decoded.getWidth(), decoded.getHeight());
+            return extract(decoded, src, rotation, outSize, config, metrics);
+        } finally {
+            metrics.bitmapReleased(decoded);
+            decoded.recycle();
+        }
+    }
+
+    // Largest power of two subsampling which still yields at least outSize.
+    static int sampleSizeFor(Rect crop, int[] outSize) {
+        int sampleSize = 1;
+        while (crop.width() / (sampleSize * 2) >= outSize[0]
+                && crop.height() / (sampleSize * 2) >= outSize[1]) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // Draws src (in source bitmap coordinates) rotated and scaled to outSize.
+    static Bitmap extract(Bitmap source, RectF src, int rotation, int[] outSize,
+                          Bitmap.Config config, CropSessionMetrics metrics) {
+        metrics.begin(CropSessionMetrics.STAGE_RESAMPLE);
+        float[] values = new float[9];
+        CropGeometry.extractTransform(new float[] { src.left, src.top, src.right, src.bottom },
+                rotation, outSize[0], outSize[1], values);
+        Matrix m = new Matrix();
+        m.setValues(values);
+
+        Bitmap out = Bitmap.createBitmap(outSize[0], outSize[1], config);
+        metrics.bitmapAllocated(out);
+        new Canvas(out).drawBitmap(source, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+        metrics.end(CropSessionMetrics.STAGE_RESAMPLE);
+        return out;
+    }
+
+    private static void scale(RectF r, float factor) {
+        r.left *= factor;
+        r.top *= factor;
+        r.right *= factor;
+        r.bottom *= factor;
+    }
+}
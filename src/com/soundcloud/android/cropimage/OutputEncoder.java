@@ -0,0 +1,299 @@
+package com.soundcloud.android.cropimage;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes the output in the format and quality requested through the
+ * "outputFormat" (a Bitmap.CompressFormat name: JPEG, PNG or WEBP where the
+ * platform supports it), "outputQuality" and "max-output-bytes" extras.
+ *
+ * With a byte limit the quality is searched: a few candidate qualities are
+ * encoded in parallel into in-memory buffers, the range is narrowed to the
+ * best candidate which fits and the next one which doesn't, and so on until
+ * the range is closed. The buffers are reused between rounds and only the
+ * winner is written out.
+ *
+ * "jpeg-subsampling" ("420" or "444"), "jpeg-optimize", "jpeg-progressive" and
+ * "jpeg-parallel" encode JPEGs with the library's own {@link JpegEncoder}
+ * instead of Bitmap.compress; the last one on all cores.
+ */
+class OutputEncoder {
+
+    private static final String TAG = OutputEncoder.class.getSimpleName();
+
+    static final int DEFAULT_QUALITY = 100;
+    static final int MIN_QUALITY = 1;
+
+    // Candidates encoded per search round.
+    private static final int MAX_CANDIDATES = 3;
+    // Rows handed to JpegEncoder at a time.
+    private static final int STRIP_HEIGHT = 16;
+
+    final Bitmap.CompressFormat format;
+    final int quality;
+    final long maxBytes;
+
+    // JpegEncoder settings, used if mJpegEncoder is set
+    private boolean mJpegEncoder;
+    private int mSubsampling = JpegEncoder.SUBSAMPLING_420;
+    private boolean mOptimize, mProgressive, mParallel;
+
+    OutputEncoder(Bitmap.CompressFormat format, int quality, long maxBytes) {
+        this.format = format;
+        this.quality = Math.max(MIN_QUALITY, Math.min(100, quality));
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format isn't known on this
+     *         platform version
+     */
+    static OutputEncoder fromExtras(Bundle extras) {
+        if (extras == null) {
+            return new OutputEncoder(Bitmap.CompressFormat.JPEG, DEFAULT_QUALITY, 0);
+        }
+        String name = extras.getString("outputFormat");
+        Bitmap.CompressFormat format = name == null
+                ? Bitmap.CompressFormat.JPEG
+                : Bitmap.CompressFormat.valueOf(name.toUpperCase());
+        OutputEncoder encoder = new OutputEncoder(format,
+                extras.getInt("outputQuality", DEFAULT_QUALITY),
+                extras.getLong("max-output-bytes", extras.getInt("max-output-bytes")));
+
+        String subsampling = extras.getString("jpeg-subsampling");
+        encoder.mOptimize = extras.getBoolean("jpeg-optimize");
+        encoder.mProgressive = extras.getBoolean("jpeg-progressive");
+        encoder.mParallel = extras.getBoolean("jpeg-parallel");
+        if ("444".equals(subsampling)) {
+            encoder.mSubsampling = JpegEncoder.SUBSAMPLING_444;
+        } else if (subsampling != null && !"420".equals(subsampling)) {
+            throw new IllegalArgumentException("unknown jpeg-subsampling " + subsampling);
+        }
+        encoder.mJpegEncoder = encoder.isJpeg()
+                && (subsampling != null || encoder.mOptimize || encoder.mProgressive
+                        || encoder.mParallel);
+        return encoder;
+    }
+
+    /**
+     * Stores the options in properties, for an encode which happens later
+     * (see LazyCropOutput).
+     */
+    void save(Properties properties) {
+        properties.setProperty("outputFormat", format.name());
+        properties.setProperty("outputQuality", String.valueOf(quality));
+        properties.setProperty("max-output-bytes", String.valueOf(maxBytes));
+        if (mJpegEncoder) {
+            properties.setProperty("jpeg-subsampling",
+                    mSubsampling == JpegEncoder.SUBSAMPLING_444 ? "444" : "420");
+            properties.setProperty("jpeg-optimize", String.valueOf(mOptimize));
+            properties.setProperty("jpeg-progressive", String.valueOf(mProgressive));
+            properties.setProperty("jpeg-parallel", String.valueOf(mParallel));
+        }
+    }
+
+    /**
+     * The options stored by save(); properties without them give the
+     * default, a JPEG at quality 100.
+     *
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    static OutputEncoder fromProperties(Properties properties) {
+        Bundle extras = new Bundle();
+        extras.putString("outputFormat", properties.getProperty("outputFormat"));
+        extras.putInt("outputQuality", Integer.parseInt(
+                properties.getProperty("outputQuality", String.valueOf(DEFAULT_QUALITY))));
+        extras.putLong("max-output-bytes",
+                Long.parseLong(properties.getProperty("max-output-bytes", "0")));
+        extras.putString("jpeg-subsampling", properties.getProperty("jpeg-subsampling"));
+        extras.putBoolean("jpeg-optimize",
+                Boolean.parseBoolean(properties.getProperty("jpeg-optimize")));
+        extras.putBoolean("jpeg-progressive",
+                Boolean.parseBoolean(properties.getProperty("jpeg-progressive")));
+        extras.putBoolean("jpeg-parallel",
+                Boolean.parseBoolean(properties.getProperty("jpeg-parallel")));
+        return fromExtras(extras);
+    }
+
+    String getMimeType() {
+        return "image/" + format.name().toLowerCase();
+    }
+
+    boolean isJpeg() {
+        return format == Bitmap.CompressFormat.JPEG;
+    }
+
+    // PNG is lossless, the platform ignores its quality.
+    private boolean isLossy() {
+        return format != Bitmap.CompressFormat.PNG;
+    }
+
+    /**
+     * Encodes the bitmap to out and returns the number of bytes written. If
+     * even the lowest quality exceeds the byte limit that encode is written.
+     */
+    long write(Bitmap bitmap, OutputStream out) throws IOException {
+        return write(bitmap, out, 0);
+    }
+
+    /**
+     * Like {@link #write(Bitmap, OutputStream)}, with an EXIF orientation tag
+     * for the given clockwise rotation in JPEG output. The tag counts towards
+     * the byte limit.
+     */
+    long write(Bitmap bitmap, OutputStream out, int exifRotation) throws IOException {
+        if (!isJpeg()) exifRotation = 0;
+        CountingOutputStream counter = new CountingOutputStream(out);
+        OutputStream tagged = JpegExif.withRotation(counter, exifRotation);
+        if (maxBytes <= 0 || !isLossy()) {
+            int threads = mParallel ? Runtime.getRuntime().availableProcessors() : 1;
+            compress(bitmap, quality, tagged, threads);
+        } else {
+            long limit = maxBytes - (tagged != counter ? JpegExif.SEGMENT_LENGTH : 0);
+            search(bitmap, limit).writeTo(tagged);
+        }
+        tagged.flush();
+        return counter.mCount;
+    }
+
+    private ByteArrayOutputStream search(final Bitmap bitmap, long maxBytes)
+            throws IOException {
+        // the candidates already run in parallel, so each encode gets one thread
+        ByteArrayOutputStream best = new ByteArrayOutputStream();
+        compress(bitmap, quality, best, 1);
+        if (best.size() <= maxBytes) {
+            return best;
+        }
+
+        // fits: lo (or nothing yet), doesn't fit: hi
+        int lo = MIN_QUALITY - 1, hi = quality;
+        boolean found = false;
+        int threads = Math.min(MAX_CANDIDATES, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        ByteArrayOutputStream[] buffers = new ByteArrayOutputStream[MAX_CANDIDATES];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new ByteArrayOutputStream(best.size());
+        }
+        try {
+            while (hi - lo > 1) {
+                // evenly spaced candidates strictly between lo and hi
+                int count = Math.min(MAX_CANDIDATES, hi - lo - 1);
+                int[] qualities = new int[count];
+                List<Future<Void>> futures = new ArrayList<Future<Void>>(count);
+                for (int i = 0; i < count; i++) {
+                    qualities[i] = lo + (hi - lo) * (i + 1) / (count + 1);
+                    final int q = qualities[i];
+                    final ByteArrayOutputStream buffer = buffers[i];
+                    buffer.reset();
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            compress(bitmap, q, buffer, 1);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+
+                // size falls with the quality: the last fitting candidate wins
+                int winner = -1;
+                for (int i = 0; i < count && buffers[i].size() <= maxBytes; i++) {
+                    winner = i;
+                }
+                if (winner >= 0) {
+                    lo = qualities[winner];
+                    found = true;
+                    ByteArrayOutputStream swap = best;
+                    best = buffers[winner];
+                    buffers[winner] = swap;
+                }
+                if (winner + 1 < count) {
+                    hi = qualities[winner + 1];
+                    if (!found) {
+                        // keep the smallest so far in case nothing fits
+                        ByteArrayOutputStream swap = best;
+                        best = buffers[winner + 1];
+                        buffers[winner + 1] = swap;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("cannot encode " + format + ": " + e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (!found) {
+            Log.w(TAG, "no quality fits into " + maxBytes + " bytes, writing " + best.size());
+        }
+        return best;
+    }
+
+    private void compress(Bitmap bitmap, int quality, OutputStream out, int threads)
+            throws IOException {
+        if (!mJpegEncoder) {
+            if (!bitmap.compress(format, quality, out)) {
+                throw new IOException("cannot encode " + format);
+            }
+            return;
+        }
+
+        final int width = bitmap.getWidth(), height = bitmap.getHeight();
+        JpegEncoder encoder = new JpegEncoder(out, width, height, quality);
+        encoder.setSubsampling(mSubsampling);
+        encoder.setOptimizeHuffman(mOptimize);
+        encoder.setProgressive(mProgressive);
+        encoder.setThreads(threads);
+        int[] strip = new int[width * STRIP_HEIGHT];
+        for (int y = 0; y < height; y += STRIP_HEIGHT) {
+            int rows = Math.min(STRIP_HEIGHT, height - y);
+            bitmap.getPixels(strip, 0, width, 0, y, width, rows);
+            encoder.writeRows(strip, 0, width, rows);
+        }
+        encoder.finish();
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            mOut.write(buffer, offset, count);
+            mCount += count;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Several sizes of the same crop, e.g. 1024/512/128 pixel avatars. The caller
+ * passes the sizes (longest edge) as the int array extra "output-sizes" and
+ * one output Uri per size as the ArrayList extra "output-uris".
+ *
+ * The crop is decoded once at the largest size, the smaller sizes are derived
+ * from it through a chain of filtered halvings (a mip chain) and all levels
+ * are encoded in parallel.
+ */
+class OutputLadder {
+
+    private static final String TAG = OutputLadder.class.getSimpleName();
+
+    final int[] sizes;
+    final ArrayList<Uri> outputs;
+
+    private OutputLadder(int[] sizes, ArrayList<Uri> outputs) {
+        this.sizes = sizes;
+        this.outputs = outputs;
+    }
+
+    // Returns the ladder requested by the intent, or null.
+    static OutputLadder fromExtras(Bundle extras) {
+        if (extras == null) return null;
+        int[] sizes = extras.getIntArray("output-sizes");
+        ArrayList<Parcelable> uris = extras.getParcelableArrayList("output-uris");
+        if (sizes == null || sizes.length == 0 || uris == null) return null;
+        if (uris.size() != sizes.length) {
+            throw new IllegalArgumentException("output-sizes and output-uris differ in length");
+        }
+        ArrayList<Uri> outputs = new ArrayList<Uri>(uris.size());
+        for (Parcelable uri : uris) {
+            outputs.add((Uri) uri);
+        }
+        return new OutputLadder(sizes, outputs);
+    }
+
+    int getLargestSize() {
+        int largest = 0;
+        for (int size : sizes) {
+            largest = Math.max(largest, size);
+        }
+        return largest;
+    }
+
+    /**
+     * Builds one bitmap per requested size from the top level, in the order of
+     * the sizes. The top level itself may be returned as one of the levels,
+     * intermediate halvings which aren't levels are recycled.
+     */
+    Bitmap[] build(Bitmap top, CropSessionMetrics metrics) {
+        Integer[] order = new Integer[sizes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return sizes[b] - sizes[a];
+            }
+        });
+
+        metrics.begin(CropSessionMetrics.STAGE_RESAMPLE);
+        Bitmap[] levels = new Bitmap[sizes.length];
+        List<Bitmap> kept = new ArrayList<Bitmap>();
+        int[] target = new int[2];
+        Bitmap current = top;
+        for (int index : order) {
+            CropGeometry.fitOutputSize(top.getWidth(), top.getHeight(),
+                    sizes[index], sizes[index], target);
+
+            // halve while the next level still covers the target
+            while (current.getWidth() / 2 >= target[0] && current.getHeight() / 2 >= target[1]) {
+                Bitmap half = Bitmap.createScaledBitmap(current,
+                        current.getWidth() / 2, current.getHeight() / 2, true);
+                metrics.bitmapAllocated(half);
+                release(current, top, kept, metrics);
+                current = half;
+            }
+
+            Bitmap level = current;
+            if (current.getWidth() != target[0] || current.getHeight() != target[1]) {
+                level = Bitmap.createScaledBitmap(current, target[0], target[1], true);
+                metrics.bitmapAllocated(level);
+            }
+            levels[index] = level;
+            kept.add(level);
+        }
+        release(current, top, kept, metrics);
+        metrics.end(CropSessionMetrics.STAGE_RESAMPLE);
+        return levels;
+    }
+
+    private static void release(Bitmap bitmap, Bitmap top, List<Bitmap> kept,
+                                CropSessionMetrics metrics) {
+        if (bitmap != top && !kept.contains(bitmap)) {
+            metrics.bitmapReleased(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Encodes every level to its output Uri on a thread pool and adds the Uris
+     * which were written to written. Blocks until all levels are done.
+     *
+     * @throws IOException if any level couldn't be written, after the others
+     *         were; the cause is the first failure
+     */
+    void save(final ContentResolver resolver, Bitmap[] levels, final OutputEncoder encoder,
+              final CropSessionMetrics metrics, ArrayList<Uri> written) throws IOException {
+        int threads = Math.min(levels.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        metrics.begin(CropSessionMetrics.STAGE_ENCODE);
+        try {
+            List<Future<Uri>> futures = new ArrayList<Future<Uri>>(levels.length);
+            for (int i = 0; i < levels.length; i++) {
+                final Bitmap level = levels[i];
+                final Uri output = outputs.get(i);
+                futures.add(executor.submit(new Callable<Uri>() {
+                    public Uri call() throws IOException {
+                        return encode(resolver, level, output, encoder);
+                    }
+                }));
+            }
+
+            Throwable error = null;
+            int failed = 0;
+            for (Future<Uri> future : futures) {
+                try {
+                    Uri uri = future.get();
+                    if (uri != null) written.add(uri);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "error saving output: " + e.getCause(), e.getCause());
+                    if (error == null) error = e.getCause();
+                    failed++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            if (error != null) {
+                IOException e = new IOException("cannot write " + failed + " of "
+                        + levels.length + " outputs");
+                e.initCause(error);
+                throw e;
+            }
+        } finally {
+            executor.shutdown();
+            metrics.end(CropSessionMetrics.STAGE_ENCODE);
+        }
+    }
+
+    private static Uri encode(ContentResolver resolver, Bitmap level, Uri output,
+                              OutputEncoder encoder) throws IOException {
+        if (output == null) return null;
+        OutputWriter.write(resolver, output, level, encoder);
+        return output;
+    }
+}
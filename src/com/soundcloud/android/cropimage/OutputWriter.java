@@ -0,0 +1,153 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes an encoded output so the caller never sees a partial image.
+ *
+ * file:// targets are encoded into a temp file in the same directory, synced
+ * and renamed over the target, so a crash or a full disk leaves the old file
+ * (or none) behind. Other targets can't be renamed: the output is encoded
+ * into memory first and copied to the provider in one write, an encoder
+ * error never reaches the target.
+ */
+class OutputWriter {
+
+    // Large writes, the encoders produce many small ones.
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private OutputWriter() {
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    static long write(ContentResolver resolver, Uri output, Bitmap bitmap,
+                      OutputEncoder encoder) throws IOException {
+        return write(resolver, output, bitmap, encoder, 0);
+    }
+
+    /**
+     * @param exifRotation the clockwise rotation tagged in JPEG output, see
+     *                     {@link OutputEncoder#write(Bitmap, OutputStream, int)}
+     * @return the number of bytes written
+     */
+    static long write(ContentResolver resolver, Uri output, Bitmap bitmap,
+                      OutputEncoder encoder, int exifRotation) throws IOException {
+        if ("file".equals(output.getScheme())) {
+            return writeFile(new File(output.getPath()), bitmap, encoder, exifRotation);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        encoder.write(bitmap, buffer, exifRotation);
+
+        OutputStream out = resolver.openOutputStream(output);
+        if (out == null) {
+            throw new IOException("cannot open " + output);
+        }
+        try {
+            buffer.writeTo(out);
+            out.flush();
+            if (out instanceof FileOutputStream) {
+                ((FileOutputStream) out).getFD().sync();
+            }
+        } finally {
+            Util.closeSilently(out);
+        }
+        return buffer.size();
+    }
+
+    private static long writeFile(File target, Bitmap bitmap, OutputEncoder encoder,
+                                  int exifRotation) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        // same directory, the rename must not cross file systems
+        // a fixed prefix, createTempFile() rejects names under three characters
+        File temp = File.createTempFile("crop", ".part", dir);
+        boolean complete = false;
+        try {
+            FileOutputStream file = new FileOutputStream(temp);
+            long bytes;
+            try {
+                OutputStream out = new BufferedOutputStream(file, BUFFER_SIZE);
+                bytes = encoder.write(bitmap, out, exifRotation);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                Util.closeSilently(file);
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("cannot rename " + temp + " to " + target);
+            }
+            complete = true;
+            return bytes;
+        } finally {
+            if (!complete) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * A temp file for an output which is encoded elsewhere (see CropProcess),
+     * next to a file:// target so commit() can rename it.
+     */
+    static File createTemp(Context context, Uri output) throws IOException {
+        File dir = "file".equals(output.getScheme())
+                ? new File(output.getPath()).getAbsoluteFile().getParentFile()
+                : context.getCacheDir();
+        return File.createTempFile("crop", ".part", dir);
+    }
+
+    /**
+     * Moves a complete, synced temp file from createTemp() to the output.
+     *
+     * @return the number of bytes written
+     */
+    static long commit(ContentResolver resolver, File temp, Uri output) throws IOException {
+        final long bytes = temp.length();
+        try {
+            if ("file".equals(output.getScheme())) {
+                File target = new File(output.getPath());
+                if (!temp.renameTo(target)) {
+                    throw new IOException("cannot rename " + temp + " to " + target);
+                }
+                return bytes;
+            }
+
+            OutputStream out = resolver.openOutputStream(output);
+            if (out == null) {
+                throw new IOException("cannot open " + output);
+            }
+            InputStream in = new FileInputStream(temp);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                out.flush();
+                if (out instanceof FileOutputStream) {
+                    ((FileOutputStream) out).getFD().sync();
+                }
+            } finally {
+                Util.closeSilently(in);
+                Util.closeSilently(out);
+            }
+            return bytes;
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.soundcloud.android.cropimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * Chooses the Bitmap.Config of the preview and of the outputs.
+ *
+ * RGB_565 takes half the memory of ARGB_8888 but has no alpha and shows
+ * banding in smooth gradients, so it is only used for opaque images which
+ * would otherwise take a large share of the heap.
+ */
+class PixelFormatPolicy {
+
+    // An image may take up to 1/HEAP_SHARE of the heap in ARGB_8888.
+    static final int HEAP_SHARE = 4;
+
+    private PixelFormatPolicy() {
+    }
+
+    /**
+     * @param mimeType of the source as reported by BitmapFactory, may be null
+     * @param heapBytes the heap available to the app, Runtime.maxMemory()
+     */
+    static Bitmap.Config forPreview(String mimeType, int width, int height, long heapBytes) {
+        // only JPEG is known to be opaque without decoding it
+        boolean opaque = "image/jpeg".equals(mimeType);
+        return opaque && isLarge(width, height, heapBytes)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @param format of the saved output, or null if the pixels are returned
+     * @param sourceHasAlpha whether the decoded source has transparent pixels
+     */
+    static Bitmap.Config forOutput(Bitmap.CompressFormat format, boolean sourceHasAlpha,
+                                   int width, int height, long heapBytes) {
+        if (format != Bitmap.CompressFormat.JPEG && sourceHasAlpha) {
+            // PNG, WEBP and returned pixels keep the transparency of the source
+            return Bitmap.Config.ARGB_8888;
+        }
+        return isLarge(width, height, heapBytes)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    private static boolean isLarge(int width, int height, long heapBytes) {
+        return heapBytes > 0 && (long) width * height * 4 > heapBytes / HEAP_SHARE;
+    }
+}
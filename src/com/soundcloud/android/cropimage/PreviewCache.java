@@ -0,0 +1,253 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decoded previews on disk, so reopening the cropper on the same source (a
+ * retry, or a restart after the process died) maps the pixels back instead
+ * of decoding the source again.
+ *
+ * Entries use the raw format of {@link CropResult} and are keyed by the
+ * source Uri, its size and its modification time, a source which changes
+ * gets a new entry; sources whose modification time is unknown aren't
+ * cached. The least recently used entries are deleted when the cache grows
+ * beyond its size. Entries are written on a background thread and not
+ * synced, losing one to a crash only costs a decode. Previews of sources
+ * which are region decoded are stored subsampled if they would take more than
+ * half of the cache, so the preview size doesn't always match the source.
+ */
+class PreviewCache {
+
+    private static final String TAG = PreviewCache.class.getSimpleName();
+
+    static final String DIRECTORY = "cropimage-previews";
+    static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".preview";
+
+    // one writer for all instances, they share the directory
+    private static final ExecutorService sWriter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    private PreviewCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the cache, or null if maxSize is 0 or the directory can't be
+     *         created
+     */
+    static PreviewCache open(Context context, long maxSize) {
+        if (maxSize <= 0) return null;
+        File dir = new File(context.getCacheDir(), DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "cannot create " + dir);
+            return null;
+        }
+        return new PreviewCache(dir, maxSize);
+    }
+
+    /**
+     * @return the cache key of the source in its current version decoded to
+     *         config, or null if its size or modification time is unknown
+     */
+    static String getKey(ContentResolver resolver, Uri source, File file, Bitmap.Config config) {
+        long size, modified;
+        if (file != null && file.isFile()) {
+            size = file.length();
+            modified = file.lastModified();
+        } else {
+            // no file behind it: the media store may know when it changed,
+            // an edit in place of the same size would be missed otherwise
+            modified = getDateModified(resolver, source);
+            if (modified <= 0) return null;
+            ParcelFileDescriptor pfd = null;
+            try {
+                pfd = resolver.openFileDescriptor(source, "r");
+                size = pfd == null ? -1 : pfd.getStatSize();
+            } catch (IOException e) {
+                size = -1;
+            } finally {
+                // not Closeable before API 16
+                if (pfd != null) {
+                    try {
+                        pfd.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        if (size < 0) return null;
+        return sha1(source + "|" + size + "|" + modified + "|" + config);
+    }
+
+    // MediaStore's date_modified of a content Uri in ms, 0 if it has none.
+    private static long getDateModified(ContentResolver resolver, Uri source) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(source.getScheme())) return 0;
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(source,
+                    new String[] { MediaStore.MediaColumns.DATE_MODIFIED }, null, null, null);
+            if (cursor == null || !cursor.moveToFirst() || cursor.isNull(0)) return 0;
+            return cursor.getLong(0) * 1000; // seconds
+        } catch (RuntimeException e) {
+            // providers reject columns they don't have
+            return 0;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    Bitmap get(String key) {
+        File file = new File(mDir, key + SUFFIX);
+        if (!file.isFile()) return null;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            Bitmap bitmap = CropResult.readPixels(in.getChannel(), file);
+            // the modification time orders the entries for trimming
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        } catch (IOException e) {
+            Log.w(TAG, "dropping " + file + ": " + e.getMessage());
+            file.delete();
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "cannot allocate preview: " + e.getMessage());
+        } finally {
+            Util.closeSilently(in);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the preview in the background. The bitmap is copied first, so
+     * the caller can recycle it right away.
+     *
+     * @param subsample whether a preview too large for the cache may be
+     *                  stored subsampled (the crop is then taken from the
+     *                  source, not the preview); if not it isn't stored
+     */
+    void put(final String key, Bitmap bitmap, boolean subsample) {
+        if (bitmap.getConfig() == null) return;
+        final long bytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        // a single entry may not push everything else out
+        int sampleSize = 1;
+        while (CropResult.HEADER_SIZE + bytes / ((long) sampleSize * sampleSize) > mMaxSize / 2) {
+            if (!subsample || bitmap.getWidth() / sampleSize < 2
+                    || bitmap.getHeight() / sampleSize < 2) {
+                return;
+            }
+            sampleSize *= 2;
+        }
+
+        final Bitmap copy;
+        try {
+            copy = sampleSize == 1
+                    ? bitmap.copy(bitmap.getConfig(), false)
+                    : Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() / sampleSize,
+                            bitmap.getHeight() / sampleSize, true);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "cannot cache preview: " + e.getMessage());
+            return;
+        }
+        if (copy == null) return;
+        sWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    write(key, copy);
+                } finally {
+                    copy.recycle();
+                }
+            }
+        });
+    }
+
+    private void write(String key, Bitmap bitmap) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, ".part", mDir);
+            CropResult.writePixels(temp, bitmap, false);
+            if (!temp.renameTo(new File(mDir, key + SUFFIX))) {
+                throw new IOException("cannot rename " + temp);
+            }
+            temp = null;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot cache preview: " + e.getMessage());
+        } finally {
+            if (temp != null) temp.delete();
+        }
+        trim();
+    }
+
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxSize) return;
+
+        // oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxSize; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                   .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
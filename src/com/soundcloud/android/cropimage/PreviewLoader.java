@@ -0,0 +1,122 @@
+package com.soundcloud.android.cropimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Probes a source (EXIF rotation, dimensions, preview pixel format, cache
+ * key) and loads its preview, from the {@link PreviewCache} if possible.
+ * Used by CropImageActivity and ahead of it by {@link CropPrewarm}.
+ */
+class PreviewLoader {
+
+    private static final String TAG = PreviewLoader.class.getSimpleName();
+
+    final Uri source;
+    final int exifRotation;
+    // sniffed, null if unknown
+    final String format;
+    // null if the bounds can't be decoded
+    final int[] sourceSize;
+    final Bitmap.Config config;
+
+    private final PreviewCache mCache;
+    private final String mCacheKey;
+
+    private PreviewLoader(Uri source, int exifRotation, String format, int[] sourceSize,
+                          Bitmap.Config config, PreviewCache cache, String cacheKey) {
+        this.source = source;
+        this.exifRotation = exifRotation;
+        this.format = format;
+        this.sourceSize = sourceSize;
+        this.config = config;
+        mCache = cache;
+        mCacheKey = cacheKey;
+    }
+
+    /**
+     * @param cacheSize size of the preview cache, 0 to not use it
+     */
+    static PreviewLoader probe(Context context, Uri source, long cacheSize) {
+        final ContentResolver resolver = context.getContentResolver();
+        File file = CropImageActivity.getFromMediaUri(resolver, source);
+
+        String format = CropDecoders.sniff(resolver, source);
+
+        // Can't assume that getExifRotation() will always return a valid number.
+        // This fixes the issue with the image viewer having a crooked image!
+        int rotation = file != null && file.isFile() ? CropImageActivity.getExifRotation(file)
+                : CropDecoders.JPEG.equals(format) ? getExifRotation(resolver, source) : 0;
+        if (rotation == -1) rotation = 0;
+        int[] size = null;
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        BitmapFactory.Options bounds = decodeBounds(resolver, source, format);
+        if (bounds != null) {
+            size = new int[] { bounds.outWidth, bounds.outHeight };
+            config = PixelFormatPolicy.forPreview(format != null ? format : bounds.outMimeType,
+                    bounds.outWidth, bounds.outHeight, Runtime.getRuntime().maxMemory());
+        }
+
+        // in-memory sources are decoded quickly and have no stable identity
+        PreviewCache cache = CropSources.isHandle(source)
+                ? null : PreviewCache.open(context, cacheSize);
+        String key = cache == null ? null : PreviewCache.getKey(resolver, source, file, config);
+        return new PreviewLoader(source, rotation, format, size, config, cache, key);
+    }
+
+    /**
+     * @return the preview, or null if the source can't be decoded
+     */
+    Bitmap load(ContentResolver resolver) throws IOException {
+        Bitmap preview = mCacheKey == null ? null : mCache.get(mCacheKey);
+        if (preview != null) return preview;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        preview = CropDecoders.decode(resolver, source, format, options);
+        if (preview != null && mCacheKey != null) {
+            // the crop is decoded from the source where it can be
+            mCache.put(mCacheKey, preview, CropDecoders.canDecodeRegion(format));
+        }
+        return preview;
+    }
+
+    // EXIF rotation of a JPEG without a file (in-memory buffers, content Uris).
+    private static int getExifRotation(ContentResolver resolver, Uri source) {
+        InputStream is = null;
+        try {
+            is = CropSources.openInputStream(resolver, source);
+            return is == null ? -1 : JpegExif.getRotation(new BufferedInputStream(is));
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            Util.closeSilently(is);
+        }
+    }
+
+    // Dimensions and type of the stored source image, without decoding it.
+    static BitmapFactory.Options decodeBounds(ContentResolver resolver, Uri source,
+                                              String format) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            CropDecoders.decode(resolver, source, format, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            return options;
+        } catch (IOException e) {
+            Log.e(TAG, "error reading picture: " + e.getMessage(), e);
+            return null;
+        }
+    }
+}